@@ -14,6 +14,27 @@ import org.fcrepo.server.storage.DOWriter;
  */
 public interface APIHooks 
 {
+	/**
+	 * Tells whether a hook method is enabled in fedora.fcfg, so that callers
+	 * can skip preparing the parameters of disabled methods.
+	 *
+	 * @param method The name of the method that calls the hook
+	 * @return boolean TRUE if the method is enabled
+	 */
+	boolean isEnabled(String method);
+	
+	/**
+	 * Tells whether a hook method is enabled and subscribed to a call, see
+	 * {@link HookFilter}. Cheap enough to be asked before anything else.
+	 *
+	 * @param method The name of the method that calls the hook
+	 * @param pid The PID that is being accessed
+	 * @param datastream The datastream ID, null if the call has none
+	 * @param mimeType The MIME type of the datastream, null if the call has none
+	 * @return boolean TRUE if the hook is to be called
+	 */
+	boolean isSubscribed(String method, String pid, String datastream, String mimeType);
+	
 	/**
 	 * Runs the hook if enabled in fedora.fcfg.
 	 *
@@ -26,4 +47,46 @@ public interface APIHooks
 	 * @throws APIHookException If the remote call failed
 	 */
 	String runHook(String method, DOWriter w, Context context, String pid, Object[] params) throws APIHooksException;
+	
+	/**
+	 * Sends the hooks that were batched for this writer (methods with 
+	 * <code>&lt;method&gt;.batch=true</code>) and executes the returned commands.
+	 * Must be called right before the writer commits.
+	 *
+	 * @param w The DOWriter that is about to commit
+	 * @throws APIHooksException If the remote call failed or a hook rejected the transaction
+	 */
+	void flushHooks(DOWriter w) throws APIHooksException;
+	
+	/**
+	 * Drops the hooks batched for this writer without sending them.
+	 *
+	 * @param w The DOWriter that has been released
+	 */
+	void discardHooks(DOWriter w);
+	
+	/**
+	 * Runs a hook after the API call has been committed. Opens a new DOWriter 
+	 * for the PID, runs the hook and commits the modifications of the hook. 
+	 * Depending on fedora.fcfg this happens synchronously or in the background;
+	 * errors are logged, not thrown.
+	 *
+	 * @param method The name of the method that calls the hook
+	 * @param context The calling context to get user information from
+	 * @param pid The PID that has been modified
+	 * @param params Method parameters, depend on the method called
+	 * @param logMessage The log message for the commit
+	 */
+	void runPostCommitHook(String method, Context context, String pid, Object[] params, String logMessage);
+	
+	/**
+	 * @return long The time budget in ms of a hooked API-M call, all hook 
+	 *         calls made during it share this budget; 0 if unlimited
+	 */
+	long getRequestTimeout();
+	
+	/**
+	 * @return DatastreamIdIndex The cached datastream IDs by PID, null if disabled
+	 */
+	DatastreamIdIndex getDatastreamIdIndex();
 }
\ No newline at end of file
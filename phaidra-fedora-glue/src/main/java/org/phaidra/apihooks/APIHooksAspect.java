@@ -6,7 +6,6 @@ package org.phaidra.apihooks;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.Date;
 import java.util.Properties;
 import java.util.regex.Pattern;
@@ -14,6 +13,7 @@ import java.util.regex.Pattern;
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.After;
+import org.aspectj.lang.annotation.AfterReturning;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Before;
@@ -79,20 +79,57 @@ public class APIHooksAspect {
         }
     }
     
-    private static void logCall(String pid, String datastreamID, int stackTraceIndex) {
-        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
-        logger.debug("[pid = " + pid + " datastreamID = " + datastreamID + "] " + stack[stackTraceIndex].getClassName() + "." + stack[stackTraceIndex].getMethodName() + " called from "
-                + stack[stackTraceIndex+1].getClassName() + "." + stack[stackTraceIndex+1].getMethodName()
-                + "(" + stack[stackTraceIndex+1].getLineNumber() + ")");
+    /**
+     * Debug log of a hooked call. Uses the static part of the join point only,
+     * hook timings are recorded by {@link HookMetrics}.
+     */
+    private static void logCall(JoinPoint thisJoinPoint, String pid, String datastreamID) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("[pid = " + pid + " datastreamID = " + datastreamID + "] "
+                    + thisJoinPoint.getStaticPart().getSignature().toShortString());
+        }
     }
-    
-    private static void logCall(String pid, String datastreamID) {
-        logCall(pid, datastreamID, 4);
+
+    @Pointcut("execution(* org.fcrepo.server.management.DefaultManagement.ingest(..)) && !within(org.phaidra.apihooks.APIHooksAspect)")
+    public void ingest() {
     }
     
-    private static void logCall(String pid) {
-        logCall(pid, "", 4);
-    }   
+    /**
+     * TRUE while an ingest is running and the ingest hook is enabled, the
+     * per-datastream hooks are covered by the ingest hook then.
+     */
+    private boolean inIngest() {
+        return m_hooks.isEnabled("ingest") && HookRequestContext.find("ingest") != null;
+    }
+
+    @Pointcut("(execution(* org.fcrepo.server.management.DefaultManagement.addDatastream(..)) "
+            + "|| execution(* org.fcrepo.server.management.DefaultManagement.modifyDatastreamByValue(..)) "
+            + "|| execution(* org.fcrepo.server.management.DefaultManagement.modifyDatastreamByReference(..)) "
+            + "|| execution(* org.fcrepo.server.management.DefaultManagement.modifyObject(..)) "
+            + "|| execution(* org.fcrepo.server.management.DefaultManagement.purgeRelationship(..)) "
+            + "|| ingest()) "
+            + "&& !within(org.phaidra.apihooks.APIHooksAspect)")
+    public void hookedManagementCall() {
+    }
+
+    /**
+     * Enters the request context of the API-M call, see {@link HookRequestContext},
+     * and starts the time budget shared by all its hooks. Declared first, so 
+     * that it encloses the other advice.
+     */
+    @Around("hookedManagementCall()")
+    public Object hookRequest(ProceedingJoinPoint thisJoinPoint)
+            throws Throwable {
+
+            HookRequestContext.enter(thisJoinPoint.getSignature().getName(), thisJoinPoint.getArgs());
+            boolean started = HookDeadline.begin(m_hooks.getRequestTimeout());
+            try {
+                return thisJoinPoint.proceed();
+            } finally {
+                if (started) HookDeadline.end();
+                HookRequestContext.exit();
+            }
+    }
 
     @Pointcut("execution(void org.fcrepo.server.storage.SimpleDOWriter.addDatastream(..)) && args(datastream, addNewVersion) && !within(org.phaidra.apihooks.APIHooksAspect)")
     public void simpleDOWriterAddDatastream(Datastream datastream,
@@ -119,59 +156,31 @@ public class APIHooksAspect {
     }
 
     /**
-     * wormhole 
+     * Runs in the request context of DefaultManagement.addDatastream.
      */
-    @Pointcut("simpleDOWriterAddDatastream(datastream, addNewVersion) && cflow(addDatastream(context, pid, dsID, altIDs, dsLabel, versionable, MIMEType, formatURI, dsLocation, controlGroup, dsState, checksumType, checksum, logMessage))")
-    public void addDatastreamHook(Context context,
-                                  String pid,
-                                  String dsID,
-                                  String[] altIDs,
-                                  String dsLabel,
-                                  boolean versionable,
-                                  String MIMEType,
-                                  String formatURI,
-                                  String dsLocation,
-                                  String controlGroup,
-                                  String dsState,
-                                  String checksumType,
-                                  String checksum,
-                                  String logMessage,
-                                  Datastream datastream,
-                                  boolean addNewVersion
-                                  ) {
-
-    }
-
-    @After("addDatastreamHook(context, pid, dsID, altIDs, dsLabel, versionable, MIMEType, formatURI, dsLocation, controlGroup, dsState, checksumType, checksum, logMessage, datastream, addNewVersion)")
-    public void addDatastreamHook(Context context,
-                                    String pid,
-                                    String dsID,
-                                    String[] altIDs,
-                                    String dsLabel,
-                                    boolean versionable,
-                                    String MIMEType,
-                                    String formatURI,
-                                    String dsLocation,
-                                    String controlGroup,
-                                    String dsState,
-                                    String checksumType,
-                                    String checksum,
-                                    String logMessage,
-                                    Datastream datastream,
+    @After("simpleDOWriterAddDatastream(datastream, addNewVersion)")
+    public void addDatastreamHook(Datastream datastream,
                                     boolean addNewVersion,                                    
                                     JoinPoint thisJoinPoint)
             throws Throwable {
 
-            logCall(pid, dsID);
+            if (!m_hooks.isEnabled("addDatastream")) return;
+            HookRequestContext request = HookRequestContext.find("addDatastream");
+            if (request == null || inIngest()) return;
+
+            String pid = request.getPid();
+            if (!m_hooks.isSubscribed("addDatastream", pid, datastream.DatastreamID, datastream.DSMIME)) return;
+            logCall(thisJoinPoint, pid, (String) request.getArg(2));
     
-            String hcontent = null;
-            if (controlGroup.equals("X")) {
-                hcontent = new String((((DatastreamXMLMetadata) datastream).xmlContent), "UTF8");
+            HookContent hcontent = null;
+            if ("X".equals(request.getArg(9))) {
+                // passed as the stored bytes, see HookContent
+                hcontent = new HookContent(((DatastreamXMLMetadata) datastream).xmlContent);
             }
     
             DOWriter w = (DOWriter) thisJoinPoint.getThis();
             String hv =
-                    m_hooks.runHook("addDatastream", w, context, pid, new Object[] {
+                    m_hooks.runHook("addDatastream", w, request.getContext(), pid, new Object[] {
                             datastream.DatastreamID, datastream.DSMIME, hcontent,
                             datastream.DSLabel});
     
@@ -197,24 +206,12 @@ public class APIHooksAspect {
                                     JoinPoint thisJoinPoint)
             throws Throwable {
 
-        logCall(pid, dsID);
-        
-        DOWriter w = null;
+        if (!m_hooks.isSubscribed("addDatastream_PostCommit", pid, dsID, MIMEType) || inIngest()) return;
+
+        logCall(thisJoinPoint, pid, dsID);
         
-        try{
-                
-          w = m_manager.getWriter(Server.USE_DEFINITIVE_STORE, context, pid);
-   
-          m_hooks.runHook("addDatastream_PostCommit", w, context, pid, new Object[] { dsID, MIMEType, null, dsLabel});
-          
-          w.commit("Added a new datastream (addDatastream_PostCommit)");
-
-        }catch(Exception e){
-          logger.info("Caught exception while running addDatastream_PostCommit-Hook: "+e.getMessage());
-        }finally{
-            // DefaultManagement.finishModification
-            m_manager.releaseWriter(w);
-        }
+        m_hooks.runPostCommitHook("addDatastream_PostCommit", context, pid, new Object[] { dsID, MIMEType, null, dsLabel}, 
+                "Added a new datastream (addDatastream_PostCommit)");
         
     }
     
@@ -236,59 +233,31 @@ public class APIHooksAspect {
     }
     
     /**
-     * wormhole 
+     * Runs in the request context of DefaultManagement.modifyDatastreamByValue.
      */
-    @Pointcut("simpleDOWriterAddDatastream(datastream, addNewVersion) && cflow(modifyDatastreamByValue(context, pid, datastreamId, altIDs, dsLabel, mimeType, formatURI, dsContent, checksumType, checksum, logMessage, lastModifiedDate))")
-    public void modifyDatastreamByValueHook(Context context,
-                                  String pid,
-                                  String datastreamId,
-                                  String[] altIDs,
-                                  String dsLabel,
-                                  String mimeType,
-                                  String formatURI,
-                                  InputStream dsContent,
-                                  String checksumType,
-                                  String checksum,
-                                  String logMessage,
-                                  Date lastModifiedDate,
-                                  Datastream datastream,
-                                  boolean addNewVersion
-                                  ) {
-
-    }
-    
-    @After("modifyDatastreamByValueHook(context, pid, datastreamId, altIDs, dsLabel, mimeType, formatURI, dsContent, checksumType, checksum, logMessage, lastModifiedDate, datastream, addNewVersion)")
-    public void modifyDatastreamByValueHook(Context context,
-                                    String pid,
-                                    String datastreamId,
-                                    String[] altIDs,
-                                    String dsLabel,
-                                    String mimeType,
-                                    String formatURI,
-                                    InputStream dsContent,
-                                    String checksumType,
-                                    String checksum,
-                                    String logMessage,
-                                    Date lastModifiedDate,
-                                    Datastream datastream,
+    @After("simpleDOWriterAddDatastream(datastream, addNewVersion)")
+    public void modifyDatastreamByValueHook(Datastream datastream,
                                     boolean addNewVersion,                                   
                                     JoinPoint thisJoinPoint)
             throws Throwable {
 
-            logCall(pid, datastreamId);
+            if (!m_hooks.isEnabled("modifyDatastreamByValue")) return;
+            HookRequestContext request = HookRequestContext.find("modifyDatastreamByValue");
+            if (request == null || inIngest()) return;
+
+            String pid = request.getPid();
+            if (!m_hooks.isSubscribed("modifyDatastreamByValue", pid, datastream.DatastreamID, datastream.DSMIME)) return;
+            logCall(thisJoinPoint, pid, (String) request.getArg(2));
     
-            String hcontent = null;
-            if (dsContent != null) {
-                try {
-                    hcontent=new String(((DatastreamXMLMetadata) datastream).xmlContent, "UTF8");
-                } catch (UnsupportedEncodingException e) {
-                    throw new APIHooksException("Error converting content to UTF-8: "+e.toString());
-                }
+            HookContent hcontent = null;
+            if (request.getArg(7) != null) {
+                // passed as the stored bytes, see HookContent
+                hcontent = new HookContent(((DatastreamXMLMetadata) datastream).xmlContent);
             }
     
             DOWriter w = (DOWriter) thisJoinPoint.getThis();
            String hv =
-                    m_hooks.runHook("modifyDatastreamByValue", w, context, pid, new Object[] {
+                    m_hooks.runHook("modifyDatastreamByValue", w, request.getContext(), pid, new Object[] {
                             datastream.DatastreamID, datastream.DSMIME, hcontent,
                             datastream.DSLabel});
     
@@ -298,8 +267,8 @@ public class APIHooksAspect {
 
 
     // FIXME: in fedora 3.5 <boolean force> becomes <Date lastModifiedDate>
-    @Before("modifyDatastreamByValue(context, pid, datastreamId, altIDs, dsLabel, mimeType, formatURI, dsContent, checksumType, checksum, logMessage, lastModifiedDate)")
-    public void modifyDatastreamByValueCheckExists(Context context,
+    @Around("modifyDatastreamByValue(context, pid, datastreamId, altIDs, dsLabel, mimeType, formatURI, dsContent, checksumType, checksum, logMessage, lastModifiedDate)")
+    public Object modifyDatastreamByValueCheckExists(Context context,
                                     String pid,
                                     String datastreamId,
                                     String[] altIDs,
@@ -311,28 +280,41 @@ public class APIHooksAspect {
                                     String checksum,
                                     String logMessage,
                                     Date lastModifiedDate,                              
-                                    JoinPoint thisJoinPoint)
+                                    ProceedingJoinPoint thisJoinPoint)
             throws Throwable {
 
-            logCall(pid, datastreamId);
+            logCall(thisJoinPoint, pid, datastreamId);
             
-            // Does this DS exists?
-            DOReader r = m_manager.getReader(Server.GLOBAL_CHOICE, context, pid);
-            for (String dsId : r.ListDatastreamIDs(null)) {
-                if(dsId.equals(datastreamId)) return;
+            // Does this DS exists? Ask the index first, the reader loads the whole object
+            DatastreamIdIndex index = m_hooks.getDatastreamIdIndex();
+            Boolean exists = index != null ? index.contains(pid, datastreamId) : null;
+            if (exists == null) {
+                long stamp = index != null ? index.stamp() : 0;
+                DOReader r = m_manager.getReader(Server.GLOBAL_CHOICE, context, pid);
+                String[] dsIds = r.ListDatastreamIDs(null);
+                if (index != null) index.put(pid, dsIds, stamp);
+                exists = Boolean.FALSE;
+                for (String dsId : dsIds) {
+                    if(dsId.equals(datastreamId)) exists = Boolean.TRUE;
+                }
             }
+            if (exists.booleanValue()) return thisJoinPoint.proceed();
     
-            // No, so create new..
-
+            // No, so create new.. The content is read twice, spool it once instead of buffering it in dsContent
+            SpooledContent spool = dsContent != null ? new SpooledContent(dsContent, null) : null;
             try{
                 DefaultManagement mngmt = (DefaultManagement)thisJoinPoint.getThis();            
                 // Upload the file
-                String dsLocation = mngmt.putTempStream(context, dsContent);
+                String dsLocation = mngmt.putTempStream(context, spool != null ? spool.newInputStream() : null);
                 // Add
                 mngmt.addDatastream(context, pid, datastreamId, altIDs, dsLabel, true, mimeType, formatURI, dsLocation, "X", "A", checksumType, checksum, logMessage);
+                
+                // The original call to modifyDatastreamByValue reads its own stream of the spooled content
+                Object[] args = thisJoinPoint.getArgs();
+                args[7] = spool != null ? spool.newInputStream() : null;
+                return thisJoinPoint.proceed(args);
             }finally{
-                // This stream will be used by the original call to modifyDatastreamByValue
-                dsContent.reset();
+                if (spool != null) spool.close();
             }
     }    
     
@@ -340,100 +322,152 @@ public class APIHooksAspect {
     public void simpleDOWriterCommit() {
     }
     
-    @Pointcut("execution(* org.fcrepo.server.management.DefaultManagement.modifyObject(..)) "
-            + "&& args(context, pid, state, label, ownerId, logMessage, lastModifiedDate)"
-            + "&& !within(org.phaidra.apihooks.APIHooksAspect)")
-    public void modifyObject(Context context, String pid, String state, String label, String ownerId, String logMessage, Date lastModifiedDate) {
-    }
-    
     /**
-     * wormhole 
+     * Runs in the request context of DefaultManagement.modifyObject.
      */
-    @Pointcut("simpleDOWriterCommit() && cflow(modifyObject(context, pid, state, label, ownerId, logMessage, lastModifiedDate))")
-    public void modifyObjectHook(Context context, String pid, String state, String label, String ownerId, String logMessage, Date lastModifiedDate) {
-
-    }
-    
-    @Around("modifyObjectHook(context, pid, state, label, ownerId, logMessage, lastModifiedDate)")
-    public Object modifyObjectHook(Context context, 
-                                 String pid, 
-                                 String state, 
-                                 String label, 
-                                 String ownerId, 
-                                 String logMessage,  
-                                 Date lastModifiedDate,
-                                 ProceedingJoinPoint thisJoinPoint)
+    @Around("simpleDOWriterCommit()")
+    public Object modifyObjectHook(ProceedingJoinPoint thisJoinPoint)
             throws Throwable {
 
-            logCall(pid);
+            if (!m_hooks.isEnabled("modifyObject")) return thisJoinPoint.proceed();
+            HookRequestContext request = HookRequestContext.find("modifyObject");
+            if (request == null) return thisJoinPoint.proceed();
+
+            String pid = request.getPid();
+            if (!m_hooks.isSubscribed("modifyObject", pid, null, null)) return thisJoinPoint.proceed();
+            logCall(thisJoinPoint, pid, "");
     
-            String hv = m_hooks.runHook("modifyObject", (DOWriter)thisJoinPoint.getThis(), context, pid, new Object[] { state, label, ownerId });
+            String hv = m_hooks.runHook("modifyObject", (DOWriter)thisJoinPoint.getThis(), request.getContext(), pid, 
+                    new Object[] { request.getArg(2), request.getArg(3), request.getArg(4) });
             if(!hv.startsWith("OK"))
                 throw new APIHooksException(hv);
 
             return thisJoinPoint.proceed();
     } 
     
-    @Pointcut("execution(* org.fcrepo.server.management.DefaultManagement.modifyDatastreamByReference(..)) "
-            + "&& args(context, pid, datastreamId, altIDs, dsLabel, mimeType, formatURI, dsLocation, checksumType, checksum, logMessage, lastModifiedDate)"
+    /**
+     * Runs in the request context of DefaultManagement.ingest: one hook for
+     * the new object instead of one per datastream. The parameters are the
+     * datastreams in groups of four as for addDatastream: ID, MIME type,
+     * content (inline XML only, null otherwise) and label.
+     */
+    @Before("simpleDOWriterCommit()")
+    public void ingestHook(JoinPoint thisJoinPoint)
+            throws Throwable {
+
+            if (!m_hooks.isEnabled("ingest")) return;
+            HookRequestContext request = HookRequestContext.find("ingest");
+            if (request == null) return;
+
+            DOWriter w = (DOWriter) thisJoinPoint.getThis();
+            String pid = w.GetObjectPID();
+            if (!m_hooks.isSubscribed("ingest", pid, null, null)) return;
+            logCall(thisJoinPoint, pid, "");
+            
+            Datastream[] datastreams = w.GetDatastreams(null, null);
+            Object[] params = new Object[datastreams.length * 4];
+            for (int i = 0; i < datastreams.length; i++) {
+                Datastream ds = datastreams[i];
+                params[i * 4] = ds.DatastreamID;
+                params[i * 4 + 1] = ds.DSMIME;
+                if ("X".equals(ds.DSControlGrp)) {
+                    // sent as a digest if the hook has seen it, see ContentDigestCache
+                    params[i * 4 + 2] = new HookContent(((DatastreamXMLMetadata) ds).xmlContent);
+                }
+                params[i * 4 + 3] = ds.DSLabel;
+            }
+            
+            String hv = m_hooks.runHook("ingest", w, request.getContext(), pid, params);
+            if (!hv.startsWith("OK"))
+                throw new APIHooksException(hv);
+    }
+    
+    /**
+     * Sends the hooks batched for the committing writer. Declared after
+     * modifyObjectHook and ingestHook, so that they have already added their
+     * hooks to the batch.
+     */
+    @Before("simpleDOWriterCommit()")
+    public void flushHooks(JoinPoint thisJoinPoint)
+            throws Throwable {
+
+            m_hooks.flushHooks((DOWriter) thisJoinPoint.getThis());
+    }
+    
+    @Pointcut("execution(void org.fcrepo.server.storage.DefaultDOManager.releaseWriter(..)) && args(writer) && !within(org.phaidra.apihooks.APIHooksAspect)")
+    public void releaseWriter(DOWriter writer) {
+    }
+    
+    /**
+     * Drops hooks batched for a writer that is released without commit.
+     */
+    @After("releaseWriter(writer)")
+    public void discardHooks(DOWriter writer, JoinPoint thisJoinPoint)
+            throws Throwable {
+
+            if (writer != null) m_hooks.discardHooks(writer);
+    }
+    
+    @Pointcut("(execution(* org.fcrepo.server.storage.SimpleDOWriter.removeDatastream(..)) "
+            + "|| execution(void org.fcrepo.server.storage.SimpleDOWriter.remove())) "
             + "&& !within(org.phaidra.apihooks.APIHooksAspect)")
-    public void modifyDatastreamByReference(Context context,
-                                        String pid,
-                                        String datastreamId,
-                                        String[] altIDs,
-                                        String dsLabel,
-                                        String mimeType,
-                                        String formatURI,
-                                        String dsLocation,
-                                        String checksumType,
-                                        String checksum,
-                                        String logMessage,
-                                        Date lastModifiedDate) {
+    public void simpleDOWriterRemove() {
     }
     
     /**
-     * wormhole 
+     * Keeps the datastream ID index up to date, see {@link DatastreamIdIndex}.
      */
-    @Pointcut("simpleDOWriterAddDatastream(datastream, addNewVersion) && cflow(modifyDatastreamByReference(context, pid, datastreamId, altIDs, dsLabel, mimeType, formatURI, dsLocation, checksumType, checksum, logMessage, lastModifiedDate))")
-    public void modifyDatastreamByReferenceHook(Context context,
-                                  String pid,
-                                  String datastreamId,
-                                  String[] altIDs,
-                                  String dsLabel,
-                                  String mimeType,
-                                  String formatURI,
-                                  String dsLocation,
-                                  String checksumType,
-                                  String checksum,
-                                  String logMessage,
-                                  Date lastModifiedDate,
-                                  Datastream datastream,
-                                  boolean addNewVersion
-                                  ) {
+    @AfterReturning("simpleDOWriterAddDatastream(datastream, addNewVersion)")
+    public void indexAddDatastream(Datastream datastream, boolean addNewVersion, JoinPoint thisJoinPoint) {
 
+            DatastreamIdIndex index = m_hooks.getDatastreamIdIndex();
+            if (index != null) index.added((DOWriter) thisJoinPoint.getThis(), datastream.DatastreamID);
     }
     
-    @After("modifyDatastreamByReferenceHook(context, pid, datastreamId, altIDs, dsLabel, mimeType, formatURI, dsLocation, checksumType, checksum, logMessage, lastModifiedDate, datastream, addNewVersion)")
-    public void modifyDatastreamByReferenceHook(Context context,
-                                    String pid,
-                                    String datastreamId,
-                                    String[] altIDs,
-                                    String dsLabel,
-                                    String mimeType,
-                                    String formatURI,
-                                    String dsLocation,
-                                    String checksumType,
-                                    String checksum,
-                                    String logMessage,
-                                    Date lastModifiedDate,
-                                    Datastream datastream,
+    @AfterReturning("simpleDOWriterRemove()")
+    public void indexRemove(JoinPoint thisJoinPoint) {
+
+            DatastreamIdIndex index = m_hooks.getDatastreamIdIndex();
+            if (index != null) index.removed((DOWriter) thisJoinPoint.getThis());
+    }
+    
+    @AfterReturning("simpleDOWriterCommit()")
+    public void indexCommit(JoinPoint thisJoinPoint)
+            throws Throwable {
+
+            DatastreamIdIndex index = m_hooks.getDatastreamIdIndex();
+            if (index != null) {
+                DOWriter w = (DOWriter) thisJoinPoint.getThis();
+                index.committed(w, w.GetObjectPID());
+            }
+    }
+    
+    @After("releaseWriter(writer)")
+    public void indexDiscard(DOWriter writer, JoinPoint thisJoinPoint) {
+
+            DatastreamIdIndex index = m_hooks.getDatastreamIdIndex();
+            if (index != null && writer != null) index.discard(writer);
+    }
+    
+    /**
+     * Runs in the request context of DefaultManagement.modifyDatastreamByReference.
+     */
+    @After("simpleDOWriterAddDatastream(datastream, addNewVersion)")
+    public void modifyDatastreamByReferenceHook(Datastream datastream,
                                     boolean addNewVersion,                                   
                                     JoinPoint thisJoinPoint)
             throws Throwable {
 
-            logCall(pid, datastreamId);
+            if (!m_hooks.isEnabled("modifyDatastreamByReference")) return;
+            HookRequestContext request = HookRequestContext.find("modifyDatastreamByReference");
+            if (request == null || inIngest()) return;
+
+            String pid = request.getPid();
+            String datastreamId = (String) request.getArg(2);
+            if (!m_hooks.isSubscribed("modifyDatastreamByReference", pid, datastreamId, datastream.DSMIME)) return;
+            logCall(thisJoinPoint, pid, datastreamId);
     
-            String hv = m_hooks.runHook("modifyDatastreamByReference", (DOWriter) thisJoinPoint.getThis(), context, pid, new Object[] { datastreamId, datastream.DSMIME });
+            String hv = m_hooks.runHook("modifyDatastreamByReference", (DOWriter) thisJoinPoint.getThis(), request.getContext(), pid, new Object[] { datastreamId, datastream.DSMIME });
         
             if (!hv.startsWith("OK")) throw new APIHooksException(hv);        
 
@@ -443,45 +477,25 @@ public class APIHooksAspect {
     public void simpleDOWriterPurgeRelationship() {
     }
     
-    @Pointcut("execution(* org.fcrepo.server.management.DefaultManagement.purgeRelationship(..)) "
-            + "&& args(context, subject, relationship, object, isLiteral, datatype)"
-            + "&& !within(org.phaidra.apihooks.APIHooksAspect)")
-    public void purgeRelationship(Context context,
-                             String subject,
-                             String relationship,
-                             String object,
-                             boolean isLiteral,
-                             String datatype) {
-    }
-    
     /**
-     * wormhole 
+     * Runs in the request context of DefaultManagement.purgeRelationship.
      */
-    @Pointcut("simpleDOWriterPurgeRelationship() && cflow(purgeRelationship(context, subject, relationship, object, isLiteral, datatype))")
-    public void purgeRelationshipHook(Context context,
-                                      String subject,
-                                      String relationship,
-                                      String object,
-                                      boolean isLiteral,
-                                      String datatype) {
-
-    }
-    
-    @After("purgeRelationshipHook(context, subject, relationship, object, isLiteral, datatype)")
-    public void purgeRelationshipHook(Context context,
-                                        String subject,
-                                        String relationship,
-                                        String object,
-                                        boolean isLiteral,
-                                        String datatype,                              
-                                 JoinPoint thisJoinPoint)
+    @After("simpleDOWriterPurgeRelationship()")
+    public void purgeRelationshipHook(JoinPoint thisJoinPoint)
             throws Throwable {
 
-            logCall(subject, "");   
+            if (!m_hooks.isEnabled("purgeRelationship")) return;
+            HookRequestContext request = HookRequestContext.find("purgeRelationship");
+            if (request == null) return;
+
+            String subject = request.getPid();
+            logCall(thisJoinPoint, subject, "");   
             
             String pid = FedoraHelper.getSubjectPID(subject);
+            if (!m_hooks.isSubscribed("purgeRelationship", pid, null, null)) return;
             
-            String hv = m_hooks.runHook("purgeRelationship", (DOWriter) thisJoinPoint.getThis(), context, pid, new Object[] { relationship, object, isLiteral, datatype });
+            String hv = m_hooks.runHook("purgeRelationship", (DOWriter) thisJoinPoint.getThis(), request.getContext(), pid, 
+                    new Object[] { request.getArg(2), request.getArg(3), request.getArg(4), request.getArg(5) });
             if(!hv.startsWith("OK"))
                 throw new APIHooksException(hv);
 
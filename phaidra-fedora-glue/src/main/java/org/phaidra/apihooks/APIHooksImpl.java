@@ -3,35 +3,51 @@
  */
 package org.phaidra.apihooks;
 
-import java.io.ByteArrayOutputStream;
-import java.io.StringReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.namespace.QName;
+import javax.xml.rpc.ServiceException;
 
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.client.Service;
+import org.apache.axis.configuration.SimpleProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.fcrepo.common.Constants;
 import org.fcrepo.server.Context;
 import org.fcrepo.server.Module;
+import org.fcrepo.server.ReadOnlyContext;
 import org.fcrepo.server.Server;
-import org.fcrepo.server.errors.GeneralException;
 import org.fcrepo.server.errors.ModuleInitializationException;
+import org.fcrepo.server.errors.ModuleShutdownException;
 import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.storage.DOManager;
 import org.fcrepo.server.storage.DOWriter;
 import org.fcrepo.server.storage.types.AuditRecord;
 import org.fcrepo.server.storage.types.Datastream;
 import org.fcrepo.server.storage.types.DatastreamXMLMetadata;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-
-import org.apache.xml.serialize.OutputFormat;
-import org.apache.xml.serialize.XMLSerializer;
 
 /**
  * API hooks abstract superclass.
@@ -43,99 +59,985 @@ public abstract class APIHooksImpl extends Module implements APIHooks {
 
 	protected static Log log = LogFactory.getLog(APISOAPHooksImpl.class);	
 	
-	public APIHooksImpl(Map moduleParameters, Server server, String role)
-			throws ModuleInitializationException {
-		super(moduleParameters, server, role);
+	/** Every method name the aspect passes to runHook / runPostCommitHook */
+	public static final String[] HOOK_METHODS = { "addDatastream", "addDatastream_PostCommit", 
+		"modifyDatastreamByValue", "modifyDatastreamByReference", "modifyObject", "purgeRelationship", "ingest" };
+	
+	/** The enabled methods, built in initModule */
+	private final Map<String, HookMethod> hookMethods = new HashMap<String, HookMethod>();
+	
+	/** Transports by type and endpoint, shared by the methods routed to them */
+	private final Map<String, HookTransport> transports = new HashMap<String, HookTransport>();
+	
+	private List<HookHandler> handlers;
+	
+	private HookHttpClient httpClient;
+	
+	private Service soapService;
+	
+	private VerdictCache verdictCache;
+	
+	private SubjectAttributeCache subjectCache;
+	
+	private HookResultParser resultParser;
+	
+	private HookMetrics metrics;
+	
+	private DatastreamIdIndex datastreamIdIndex;
+	
+	/** Hooks waiting for the commit of their writer, null if no method is batched */
+	private Map<DOWriter, List<HookEvent>> batches;
+	
+	private DOManager manager;
+	
+	private KeyedSerialExecutor postCommitExecutor;
+	
+	/** Time in ms a post-commit event waits for room in a full queue, negative to wait as long as it takes */
+	private long queueTimeout;
+	
+	private PostCommitJournal journal;
+	
+	private ScheduledExecutorService retryScheduler;
+	
+	/** Canonicalizes the contents of hook commands, null to do it in the calling thread */
+	private ExecutorService canonicalizeExecutor;
+	
+	/** Asynchronous post-commit events waiting for their window to close, null if not coalesced */
+	private PostCommitCoalescer coalescer;
+	
+	private long retryInterval;
+	
+	private long retryMax;
+	
+	/** Circuit breakers by method, created on first use; none if breakerfailures is 0 */
+	private final Map<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+	
+	private int breakerFailures;
+	
+	private long breakerSlowCall;
+	
+	private long breakerOpenTime;
+	
+	private long requestTimeout;
+	
+	public APIHooksImpl(Map moduleParameters, Server server, String role)
+			throws ModuleInitializationException {
+		super(moduleParameters, server, role);
+	}
+
+	/**
+	 * Runs the hook if enabled in fedora.fcfg.
+	 *
+	 * @param method The name of the method that calls the hook
+	 * @param pid The PID that is being accessed
+	 * @param params Method parameters, depend on the method called
+	 * @return String Hook verdict. Begins with "OK" if it's ok to proceed.
+	 * @throws APIHooksException If the remote call went wrong
+	 */
+	public String runHook(String method, DOWriter w, Context context, String pid, Object[] params) throws APIHooksException
+	{
+		// Only do this if the method is enabled in fedora.fcfg
+		HookMethod hookMethod = hookMethods.get(method);
+		if(hookMethod==null)
+		{
+			log.debug("runHook: method |"+method+"| not configured, not calling webservice");
+			return "OK";
+		}
+		
+		long start = System.nanoTime();
+		String cacheKey = null;
+		if(verdictCache!=null && hookMethod.isCache())
+		{
+			cacheKey = VerdictCache.key(method, context, subjectCache.get(context).getFingerprint(), pid, params);
+			String cached = verdictCache.get(cacheKey);
+			if(cached!=null)
+			{
+				log.debug("runHook: cached verdict for method |"+method+"|, pid |"+pid+"|: "+cached);
+				metrics.count(method, VerdictCounter.Outcome.CACHED);
+				metrics.record(method, HookMetrics.TOTAL, System.nanoTime()-start);
+				return cached;
+			}
+		}
+		
+		// batched methods are sent together just before the writer commits, see flushHooks
+		if(w!=null && batches!=null && hookMethod.isBatch())
+		{
+			List<HookEvent> batch;
+			synchronized(batches)
+			{
+				batch = batches.get(w);
+				if(batch==null)
+				{
+					batch = new ArrayList<HookEvent>();
+					batches.put(w, batch);
+				}
+			}
+			batch.add(new HookEvent(method, context, pid, params));
+			log.debug("runHook: method |"+method+"| for pid |"+pid+"| batched until commit");
+			metrics.count(method, VerdictCounter.Outcome.BATCHED);
+			return "OK";
+		}
+		
+		long callStart = System.nanoTime();
+		HookResult result;
+		try
+		{
+			result = callHook(hookMethod, context, pid, params);
+		}
+		catch(APIHooksException ex)
+		{
+			metrics.count(method, VerdictCounter.Outcome.ERROR);
+			throw ex;
+		}
+		long callEnd = System.nanoTime();
+		String verdict = applyResults(result, w, context);
+		long end = System.nanoTime();
+		metrics.recordCall(method, result, callEnd-callStart, end-callEnd);
+		metrics.record(method, HookMetrics.TOTAL, end-start);
+		
+		// verdicts with commands are never cached, the commands have to run every time
+		if(cacheKey!=null && result.getCommands().isEmpty() && !result.isFailedOpen())
+		{
+			verdictCache.put(cacheKey, verdict);
+		}
+		return verdict;
+	}
+	
+	/**
+	 * Sends the hooks batched for this writer in one request and executes the
+	 * commands of all verdicts. If any verdict is not "OK" nothing is executed.
+	 *
+	 * @param w The DOWriter that is about to commit
+	 * @throws APIHooksException If the remote call failed or a hook rejected the transaction
+	 */
+	public void flushHooks(DOWriter w) throws APIHooksException
+	{
+		if(batches==null)
+		{
+			return;
+		}
+		List<HookEvent> events;
+		synchronized(batches)
+		{
+			events = batches.remove(w);
+		}
+		if(events==null || events.isEmpty())
+		{
+			return;
+		}
+		
+		long start = System.nanoTime();
+		List<HookResult> results;
+		try
+		{
+			results = callBatchHook(events);
+		}
+		catch(APIHooksException ex)
+		{
+			metrics.count("_batch", VerdictCounter.Outcome.ERROR);
+			throw ex;
+		}
+		long callEnd = System.nanoTime();
+		long parseTime = 0;
+		for(HookResult result : results)
+		{
+			parseTime += result.getParseTime();
+		}
+		if(!results.isEmpty() && !results.get(0).isFailedOpen())
+		{
+			metrics.record("_batch", HookMetrics.ROUNDTRIP, callEnd-start-parseTime);
+			metrics.record("_batch", HookMetrics.PROCESS_RESULTS, parseTime);
+		}
+		if(results.size()!=events.size())
+		{
+			throw new APIHooksException("Error processing hook XML: expected "+events.size()+
+					" results, got "+results.size());
+		}
+		for(int i=0;i<events.size();i++)
+		{
+			HookResult result = results.get(i);
+			metrics.count(events.get(i).getMethod(), result.isFailedOpen() ? VerdictCounter.Outcome.FAILED_OPEN : 
+				result.isOK() ? VerdictCounter.Outcome.OK : VerdictCounter.Outcome.REJECTED);
+		}
+		// one rejection aborts the whole transaction
+		for(HookResult result : results)
+		{
+			if(!result.isOK())
+			{
+				throw new APIHooksException(result.toString());
+			}
+		}
+		long commandStart = System.nanoTime();
+		// the commands of all verdicts are applied together, see applyCommands
+		List<HookCommand> commands = new ArrayList<HookCommand>();
+		for(HookResult result : results)
+		{
+			commands.addAll(result.getCommands());
+		}
+		if(!commands.isEmpty())
+		{
+			applyCommands(commands, w, events.get(0).getContext());
+		}
+		long end = System.nanoTime();
+		metrics.record("_batch", HookMetrics.COMMANDS, end-commandStart);
+		metrics.record("_batch", HookMetrics.TOTAL, end-start);
+	}
+	
+	/**
+	 * Drops the hooks batched for this writer, e.g. because it was released without commit.
+	 *
+	 * @param w The released DOWriter
+	 */
+	public void discardHooks(DOWriter w)
+	{
+		if(batches==null)
+		{
+			return;
+		}
+		List<HookEvent> events;
+		synchronized(batches)
+		{
+			events = batches.remove(w);
+		}
+		if(events!=null && !events.isEmpty())
+		{
+			log.debug("discardHooks: dropped "+events.size()+" batched hooks of an uncommitted writer");
+		}
+	}
+	
+	/**
+	 * Calls the remote hook through the circuit breaker of the method and
+	 * within the deadline of the current request. If the hook cannot be called
+	 * the failure policy of the method decides: fail-closed (the default) 
+	 * throws, fail-open lets the API call proceed.
+	 */
+	private HookResult callHook(final HookMethod hookMethod, final Context context, final String pid, 
+			final Object[] params) throws APIHooksException
+	{
+		final String method = hookMethod.getName();
+		CircuitBreaker breaker = getCircuitBreaker(method);
+		if(HookDeadline.remaining()<=0)
+		{
+			return hookUnavailable(hookMethod.isFailOpen(), method, "request deadline exceeded", null);
+		}
+		if(breaker!=null && !breaker.allowRequest())
+		{
+			return hookUnavailable(hookMethod.isFailOpen(), method, "circuit breaker open", null);
+		}
+		
+		CircuitBreaker.Call<HookResult> call = new CircuitBreaker.Call<HookResult>() {
+			public HookResult run() throws APIHooksException
+			{
+				return hookMethod.getTransport().invokeHook(method, context, pid, params);
+			}
+		};
+		try
+		{
+			return breaker!=null ? breaker.record(call) : call.run();
+		}
+		catch(APIHooksException ex)
+		{
+			return hookUnavailable(hookMethod.isFailOpen(), method, ex.getMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Like {@link #callHook}, for a batch. Batches have their own circuit
+	 * breaker "_batch" and fail open only if all batched methods do.
+	 */
+	private List<HookResult> callBatchHook(final List<HookEvent> events) throws APIHooksException
+	{
+		boolean failOpen = true;
+		for(HookEvent event : events)
+		{
+			failOpen &= hookMethods.get(event.getMethod()).isFailOpen();
+		}
+		
+		String reason = null;
+		APIHooksException cause = null;
+		CircuitBreaker breaker = getCircuitBreaker("_batch");
+		if(HookDeadline.remaining()<=0)
+		{
+			reason = "request deadline exceeded";
+		}
+		else if(breaker!=null && !breaker.allowRequest())
+		{
+			reason = "circuit breaker open";
+		}
+		else
+		{
+			CircuitBreaker.Call<List<HookResult>> call = new CircuitBreaker.Call<List<HookResult>>() {
+				public List<HookResult> run() throws APIHooksException
+				{
+					return invokeBatchHook(events);
+				}
+			};
+			try
+			{
+				return breaker!=null ? breaker.record(call) : call.run();
+			}
+			catch(APIHooksException ex)
+			{
+				reason = ex.getMessage();
+				cause = ex;
+			}
+		}
+		
+		HookResult result = hookUnavailable(failOpen, "_batch", reason, cause);
+		List<HookResult> results = new ArrayList<HookResult>();
+		for(int i=0;i<events.size();i++)
+		{
+			results.add(result);
+		}
+		return results;
+	}
+	
+	private HookResult hookUnavailable(boolean failOpen, String method, String reason, APIHooksException cause) 
+		throws APIHooksException
+	{
+		if(!failOpen)
+		{
+			throw cause!=null ? cause : new APIHooksException("Hook for method "+method+" not called: "+reason);
+		}
+		log.warn("runHook: hook for method |"+method+"| not called, proceeding (fail-open): "+reason);
+		return HookResult.failOpen(reason);
+	}
+	
+	/**
+	 * @return CircuitBreaker The breaker of the method, null if circuit breakers are disabled
+	 */
+	protected CircuitBreaker getCircuitBreaker(String method)
+	{
+		if(breakerFailures<=0)
+		{
+			return null;
+		}
+		synchronized(breakers)
+		{
+			CircuitBreaker breaker = breakers.get(method);
+			if(breaker==null)
+			{
+				breaker = new CircuitBreaker(method, breakerFailures, breakerSlowCall, breakerOpenTime);
+				breakers.put(method, breaker);
+				metrics.addCircuitBreaker(method, breaker);
+			}
+			return breaker;
+		}
+	}
+	
+	public DatastreamIdIndex getDatastreamIdIndex()
+	{
+		return datastreamIdIndex;
+	}
+	
+	/**
+	 * @return long The time budget in ms of a hooked API-M call, 0 if unlimited
+	 */
+	public long getRequestTimeout()
+	{
+		return requestTimeout;
+	}
+	
+	/**
+	 * Calls the remote hook for a list of events: in one request if all
+	 * events are routed to the same transport and it supports batches, 
+	 * otherwise once for each event.
+	 *
+	 * @param events The events, all for the same PID
+	 * @return List The results, in the order of the events
+	 * @throws APIHooksException If the remote call went wrong
+	 */
+	protected List<HookResult> invokeBatchHook(List<HookEvent> events) throws APIHooksException
+	{
+		HookTransport transport = hookMethods.get(events.get(0).getMethod()).getTransport();
+		boolean single = transport.supportsBatch();
+		for(HookEvent event : events)
+		{
+			single &= hookMethods.get(event.getMethod()).getTransport()==transport;
+		}
+		if(single)
+		{
+			return transport.invokeBatchHook(events);
+		}
+		
+		List<HookResult> results = new ArrayList<HookResult>();
+		for(HookEvent event : events)
+		{
+			results.add(hookMethods.get(event.getMethod()).getTransport().invokeHook(
+					event.getMethod(), event.getContext(), event.getPid(), event.getParams()));
+		}
+		return results;
+	}
+	
+	/**
+	 * Runs a hook after the API call has been committed, see {@link APIHooks#runPostCommitHook}.
+	 * Methods with <code>&lt;method&gt;.async=true</code> in fedora.fcfg run in the
+	 * background, ordered per PID. If the post-commit journal is configured, the
+	 * event is written to it first and failed deliveries are retried in the background.
+	 */
+	public void runPostCommitHook(String method, Context context, String pid, 
+			Object[] params, String logMessage)
+	{
+		HookMethod hookMethod = hookMethods.get(method);
+		if(hookMethod==null)
+		{
+			log.debug("runPostCommitHook: method |"+method+"| not configured, not calling webservice");
+			return;
+		}
+		
+		PostCommitEvent event = new PostCommitEvent(method, pid, 
+				context.getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri), logMessage, 
+				PostCommitEvent.toStrings(params), context);
+		if(journal!=null)
+		{
+			try
+			{
+				journal.append(event);
+			}
+			catch(IOException ex)
+			{
+				log.error("runPostCommitHook: cannot journal "+method+" for "+pid+", delivering without retries: "+ex.getMessage());
+			}
+		}
+		dispatchPostCommit(event, hookMethod.isAsync());
+	}
+	
+	private void dispatchPostCommit(final PostCommitEvent event, boolean async)
+	{
+		if(coalescer!=null && async)
+		{
+			coalescer.add(event);
+			return;
+		}
+		Runnable task = new Runnable() {
+			public void run()
+			{
+				deliverPostCommit(event);
+			}
+		};
+		if(postCommitExecutor!=null && async)
+		{
+			submitPostCommit(task, Collections.singletonList(event));
+		}
+		else
+		{
+			task.run();
+		}
+	}
+	
+	/**
+	 * Queues the events of a closed coalescing window, see {@link PostCommitCoalescer}.
+	 */
+	private void submitCoalesced(final List<PostCommitEvent> events)
+	{
+		submitPostCommit(new Runnable() {
+			public void run()
+			{
+				deliverCoalesced(events);
+			}
+		}, events);
+	}
+	
+	/**
+	 * Queues a post-commit task behind the earlier ones of its PID. If the
+	 * queue is full the calling thread waits for room, at most
+	 * <code>postcommitqueuetimeout</code> ms (default 10000, negative to wait
+	 * as long as it takes). Journaled events then go to the retry path, they
+	 * are safe on disk; other events are dropped and logged, the request
+	 * thread is not held up any longer.
+	 *
+	 * @param task The task delivering the events
+	 * @param events The events of the task, all for the same PID
+	 */
+	private void submitPostCommit(Runnable task, List<PostCommitEvent> events)
+	{
+		boolean queued;
+		try
+		{
+			queued = postCommitExecutor.execute(events.get(0).getPid(), task, queueTimeout);
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			queued = false;
+		}
+		if(queued)
+		{
+			return;
+		}
+		for(PostCommitEvent event : events)
+		{
+			if(event.isJournaled())
+			{
+				log.warn("submitPostCommit: post-commit queue full, retrying "+event+" later");
+				scheduleRetry(event, retryInterval);
+			}
+			else
+			{
+				log.error("submitPostCommit: post-commit queue full, executor shut down or interrupted, "+event+
+						" is lost (set postcommitjournal to retry it)");
+			}
+		}
+	}
+	
+	/**
+	 * Runs the hooks of several post-commit events of one object, in the
+	 * order they arrived. Each run of events of one user is run in one
+	 * writer and committed once. If anything in a run fails nothing of it is
+	 * committed and its events are delivered one by one, with retries as
+	 * usual.
+	 */
+	private void deliverCoalesced(List<PostCommitEvent> events)
+	{
+		for(List<PostCommitEvent> run : PostCommitCoalescer.splitByUser(events))
+		{
+			deliverRun(run);
+		}
+	}
+	
+	private void deliverRun(List<PostCommitEvent> events)
+	{
+		if(events.size()>1 && doPostCommitHooks(events))
+		{
+			log.debug("deliverRun: committed "+events.size()+" post-commit hooks for "+events.get(0).getPid()+" at once");
+			for(PostCommitEvent event : events)
+			{
+				if(event.isJournaled())
+				{
+					try
+					{
+						journal.ack(event);
+					}
+					catch(IOException ex)
+					{
+						// will be delivered again after a restart
+						log.warn("deliverRun: cannot acknowledge "+event+": "+ex.getMessage());
+					}
+				}
+			}
+			return;
+		}
+		for(PostCommitEvent event : events)
+		{
+			deliverPostCommit(event);
+		}
+	}
+	
+	private void deliverPostCommit(final PostCommitEvent event)
+	{
+		int attempt = event.nextAttempt();
+		boolean delivered = doPostCommitHooks(Collections.singletonList(event));
+		if(!event.isJournaled())
+		{
+			return;
+		}
+		if(delivered)
+		{
+			try
+			{
+				journal.ack(event);
+			}
+			catch(IOException ex)
+			{
+				// will be delivered again after a restart
+				log.warn("deliverPostCommit: cannot acknowledge "+event+": "+ex.getMessage());
+			}
+			return;
+		}
+		
+		// exponential backoff, capped at postcommitretrymax
+		long delay = Math.min(retryInterval << Math.min(attempt-1, 20), retryMax);
+		log.info("deliverPostCommit: attempt "+attempt+" for "+event+" failed, retrying in "+delay+" ms");
+		scheduleRetry(event, delay);
+	}
+	
+	private void scheduleRetry(final PostCommitEvent event, long delay)
+	{
+		try
+		{
+			retryScheduler.schedule(new Runnable() {
+				public void run()
+				{
+					dispatchPostCommit(event, true);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		catch(RejectedExecutionException ex)
+		{
+			log.info("scheduleRetry: shutting down, "+event+" will be replayed after the restart");
+		}
+	}
+	
+	/**
+	 * Runs the hooks of post-commit events of one object and user in one writer.
+	 *
+	 * @return boolean TRUE if all hooks ran and the writer was committed
+	 */
+	private boolean doPostCommitHooks(List<PostCommitEvent> events)
+	{
+		DOWriter w = null;
+		PostCommitEvent event = events.get(0);
+		try
+		{
+			StringBuilder logMessage = new StringBuilder();
+			for(int i=0;i<events.size();i++)
+			{
+				event = events.get(i);
+				Context context = event.getContext();
+				if(context==null)
+				{
+					// replayed from the journal, only the login id is known
+					context = ReadOnlyContext.getContext(null, event.getLoginId(), "", true);
+					event.setContext(context);
+				}
+				if(w==null)
+				{
+					w = manager.getWriter(Server.USE_DEFINITIVE_STORE, context, event.getPid());
+				}
+				runHook(event.getMethod(), w, context, event.getPid(), event.getParams());
+				if(event.getLogMessage()!=null && logMessage.indexOf(event.getLogMessage())<0)
+				{
+					logMessage.append(logMessage.length()>0 ? "; " : "").append(event.getLogMessage());
+				}
+			}
+			w.commit(logMessage.toString());
+			return true;
+		}
+		catch(Exception e)
+		{
+			log.info("Caught exception while running "+event.getMethod()+"-Hook: "+e.getMessage());
+			return false;
+		}
+		finally
+		{
+			// DefaultManagement.finishModification
+			if(w!=null)
+			{
+				manager.releaseWriter(w);
+			}
+		}
+	}
+	
+	/**
+	 * @return boolean TRUE if the method is enabled in fedora.fcfg
+	 */
+	public boolean isEnabled(String method)
+	{
+		return hookMethods.containsKey(method);
+	}
+	
+	public boolean isSubscribed(String method, String pid, String datastream, String mimeType)
+	{
+		HookMethod hookMethod = hookMethods.get(method);
+		return hookMethod!=null && hookMethod.isSubscribed(pid, datastream, mimeType);
 	}
-
+	
 	/**
-	 * Runs the hook if enabled in fedora.fcfg.
-	 *
-	 * @param method The name of the method that calls the hook
-	 * @param pid The PID that is being accessed
-	 * @param params Method parameters, depend on the method called
-	 * @return String Hook verdict. Begins with "OK" if it's ok to proceed.
-	 * @throws APIHooksException If the remote call went wrong
+	 * @return String The transport of methods without <code>&lt;method&gt;.transport</code>, "rest", "soap" or "local"
 	 */
-	public abstract String runHook(String method, DOWriter w, Context context, String pid, Object[] params) throws APIHooksException;
+	protected abstract String getDefaultTransport();
 	
 	/**
-	 * Process the Hook Result XML and act accordingly. 
-	 * 
-	 * @param hookResultXML The XML from the hook call
-	 * @param w The opened DOWriter to modify the object (active transaction)
-	 * @return String The verdict and the additionalInfo
-	 * @throws APIHooksException If parsing or processing failed
+	 * Returns the transport for a type and endpoint, creating it on first use.
+	 *
+	 * @param method The method, for error messages and its <code>&lt;method&gt;.delegate</code>
+	 * @param type "rest", "soap" or "local"
+	 * @param endpoint The endpoint URL, null for the module default (restmethod or soapproxy)
+	 * @throws ModuleInitializationException If the transport cannot be created
 	 */
-	protected String processResults(String hookResultXML, DOWriter w, Context context) throws APIHooksException
-	{	
-		String verdict="", additionalInfo="";
+	private HookTransport getTransport(String method, String type, String endpoint) throws ModuleInitializationException
+	{
+		if("local".equals(type))
+		{
+			// local handlers first, calls they do not answer go to the delegate if there is one
+			String delegateType = getParameter(method+".delegate");
+			if(delegateType==null)
+			{
+				delegateType = getParameter("delegate");
+			}
+			HookTransport delegate = null;
+			if(delegateType!=null && !"none".equalsIgnoreCase(delegateType.trim()))
+			{
+				delegate = getTransport(method, delegateType.trim().toLowerCase(), endpoint);
+			}
+			String key = "local "+delegate;
+			HookTransport transport = transports.get(key);
+			if(transport==null)
+			{
+				transport = new LocalHookTransport(getHandlers(), delegate);
+				transports.put(key, transport);
+			}
+			return transport;
+		}
+		else if("rest".equals(type))
+		{
+			endpoint = endpoint!=null ? endpoint : getParameter("restmethod");
+			if(endpoint==null)
+			{
+				throw new ModuleInitializationException(
+						"APIHooksImpl: missing parameter restmethod or "+method+".endpoint", this.getRole());
+			}
+		}
+		else if("soap".equals(type))
+		{
+			endpoint = endpoint!=null ? endpoint : getParameter("soapproxy");
+			if(endpoint==null || getParameter("soapuri")==null || getParameter("soapmethod")==null)
+			{
+				throw new ModuleInitializationException(
+						"APIHooksImpl: missing parameter soapuri, soapmethod, or soapproxy or "+method+".endpoint", 
+						this.getRole());
+			}
+		}
+		else
+		{
+			throw new ModuleInitializationException(
+					"APIHooksImpl: unknown transport |"+type+"| for method "+method, this.getRole());
+		}
 		
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		Document hookResult = null;
+		String key = type+" "+endpoint;
+		HookTransport transport = transports.get(key);
+		if(transport!=null)
+		{
+			return transport;
+		}
 		try
 		{
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			hookResult = db.parse(new InputSource(new StringReader(hookResultXML)));
+			if("rest".equals(type))
+			{
+				transport = new RESTHookTransport(endpoint, getSharedHttpClient(), getIntParameter("restreadtimeout", 60000), 
+						resultParser, subjectCache, "binary".equalsIgnoreCase(getParameter("restformat")),
+						"true".equalsIgnoreCase(getParameter("contentdigest")) ? 
+								new ContentDigestCache(getIntParameter("contentdigestcachesize", 1000)) : null);
+			}
+			else
+			{
+				transport = new SOAPHookTransport(getSOAPService(), new URL(endpoint), 
+						new QName(getParameter("soapuri"), getParameter("soapmethod")),
+						getIntParameter("soapreadtimeout", 60000), 
+						getIntParameter("soapcallpoolsize", getIntParameter("soapmaxconnections", 20)), 
+						resultParser, subjectCache);
+			}
 		}
-		catch(Exception ex)
+		catch(IllegalArgumentException ex)
 		{
-			throw new APIHooksException("Error parsing hook XML: "+ex.getMessage(), ex);
+			throw new ModuleInitializationException(
+					"APIHooksImpl: invalid endpoint |"+endpoint+"| for method "+method+": "+ex.getMessage(), this.getRole());
 		}
-		
-		Element doc = hookResult.getDocumentElement();
-		
-		// Verdict-Node suchen
-		NodeList nl = doc.getElementsByTagName("ph:verdict");
-		if(nl==null)
+		catch(MalformedURLException ex)
 		{
-			throw new APIHooksException("Error processing hook XML: no 'verdict' node found");
+			throw new ModuleInitializationException(
+					"APIHooksImpl: invalid endpoint |"+endpoint+"| for method "+method+": "+ex.getMessage(), this.getRole());
 		}
-		Element el = (Element)nl.item(0);
-		if(el==null)
+		catch(ServiceException ex)
 		{
-			throw new APIHooksException("Error processing hook XML: no 'verdict' node found (2)");
+			throw new ModuleInitializationException(
+					"APIHooksImpl: cannot create Axis call: "+ex.getMessage(), this.getRole());
 		}
-		
-		verdict = el.getFirstChild().getNodeValue();
-		additionalInfo = el.getAttribute("additionalInfo");
-		
-		// Wenn das verdict "OK" ist, auch nach abzuarbeitenden Kommandos suchen
-		if(verdict.equalsIgnoreCase("OK") && w!=null)
+		transports.put(key, transport);
+		return transport;
+	}
+	
+	/**
+	 * Loads the local hook handlers: the classes listed in 
+	 * <code>localhandlers</code> (comma separated), or all handlers registered
+	 * in <code>META-INF/services/org.phaidra.apihooks.HookHandler</code> if
+	 * the parameter is not set.
+	 *
+	 * @return List The handlers, in the order they are asked
+	 * @throws ModuleInitializationException If a handler cannot be loaded
+	 */
+	private List<HookHandler> getHandlers() throws ModuleInitializationException
+	{
+		if(handlers!=null)
 		{
-			// replaceIntoDatastream
-			nl = doc.getElementsByTagName("ph:replaceIntoDatastream");
-			if(nl!=null && nl.getLength()>0)
+			return handlers;
+		}
+		handlers = new ArrayList<HookHandler>();
+		ClassLoader loader = getClass().getClassLoader();
+		String classes = getParameter("localhandlers");
+		if(classes!=null)
+		{
+			for(String name : classes.split("[,\\s]+"))
 			{
-				for(int i=0;i<nl.getLength();i++)
+				if(name.length()==0)
+				{
+					continue;
+				}
+				try
 				{
-					el = (Element)nl.item(i);
-					String datastream = el.getAttribute("datastream");
-					String dsContent = el.getFirstChild().getNodeValue();
-					
-					log.debug("processResults: got command: replaceIntoDatastream with DS "+datastream+" and content "+dsContent);
-					
-					replaceIntoDatastream(w, context, datastream, dsContent);
+					handlers.add((HookHandler)Class.forName(name, true, loader).newInstance());
+				}
+				catch(Exception ex)
+				{
+					throw new ModuleInitializationException(
+							"APIHooksImpl: cannot load hook handler |"+name+"|: "+ex.toString(), this.getRole());
 				}
 			}
-			nl = doc.getElementsByTagName("ph:purgeDatastream");
-			if(nl!=null && nl.getLength()>0)
+		}
+		else
+		{
+			try
 			{
-				for(int i=0;i<nl.getLength();i++)
+				for(HookHandler handler : ServiceLoader.load(HookHandler.class, loader))
 				{
-					el = (Element)nl.item(i);
-					String datastream = el.getAttribute("datastream");
-					
-					log.debug("processResults: got command: purgeDatastream with DS "+datastream);
-					
-					purgeDatastream(w, context, datastream);
+					handlers.add(handler);
 				}
 			}
+			catch(ServiceConfigurationError ex)
+			{
+				throw new ModuleInitializationException(
+						"APIHooksImpl: cannot load hook handlers: "+ex.getMessage(), this.getRole());
+			}
+		}
+		
+		Map<String, String> parameters = new HashMap<String, String>();
+		for(Iterator i = parameterNames(); i.hasNext();)
+		{
+			String name = (String)i.next();
+			parameters.put(name, getParameter(name));
+		}
+		for(HookHandler handler : handlers)
+		{
+			try
+			{
+				handler.init(parameters);
+			}
+			catch(APIHooksException ex)
+			{
+				throw new ModuleInitializationException(
+						"APIHooksImpl: cannot initialize hook handler "+handler.getClass().getName()+": "+ex.getMessage(), 
+						this.getRole());
+			}
+		}
+		log.info("local hook handlers: "+handlers);
+		return handlers;
+	}
+	
+	private HookHttpClient getSharedHttpClient() throws ModuleInitializationException
+	{
+		if(httpClient==null)
+		{
+			// connection pool and timeouts, see fedora.fcfg next to restmethod
+			int connectTimeout = getIntParameter("restconnecttimeout", 10000);
+			int readTimeout = getIntParameter("restreadtimeout", 60000);
+			int maxConnections = getIntParameter("restmaxconnections", 20);
+			int maxConnectionsPerHost = getIntParameter("restmaxconnectionsperhost", maxConnections);
+			int poolTimeout = getIntParameter("restpooltimeout", connectTimeout);
+			int idleTimeout = getIntParameter("restidletimeout", 60000);
+			httpClient = new HookHttpClient(maxConnections, maxConnectionsPerHost, connectTimeout, 
+					readTimeout, poolTimeout, idleTimeout);
+			metrics.setHttpClient(httpClient);
+			
+			log.debug("REST transport: connectTimeout="+connectTimeout+", readTimeout="+readTimeout+
+					", maxConnections="+maxConnections+", maxConnectionsPerHost="+maxConnectionsPerHost);
+		}
+		return httpClient;
+	}
+	
+	/**
+	 * @return Service The Axis service with a pooled keep-alive transport, shared by all SOAP transports
+	 */
+	private Service getSOAPService() throws ModuleInitializationException
+	{
+		if(soapService==null)
+		{
+			int connectTimeout = getIntParameter("soapconnecttimeout", 10000);
+			int readTimeout = getIntParameter("soapreadtimeout", 60000);
+			int maxConnections = getIntParameter("soapmaxconnections", 20);
+			SimpleProvider config = new SimpleProvider();
+			config.deployTransport("http", new SimpleTargetedChain(
+					new SOAPHookHTTPSender(maxConnections, connectTimeout, readTimeout)));
+			soapService = new Service(config);
+			
+			log.debug("SOAP transport: connectTimeout="+connectTimeout+", readTimeout="+readTimeout+
+					", maxConnections="+maxConnections);
+		}
+		return soapService;
+	}
+	
+	/**
+	 * Execute the commands of a hook result if the verdict is "OK".
+	 * 
+	 * @param result The parsed hook result
+	 * @param w The opened DOWriter to modify the object (active transaction), may be null
+	 * @return String The verdict and the additionalInfo
+	 * @throws APIHooksException If processing failed
+	 */
+	protected String applyResults(HookResult result, DOWriter w, Context context) throws APIHooksException
+	{
+		// Wenn das verdict "OK" ist, die Kommandos abarbeiten
+		if(result.isOK() && w!=null && !result.getCommands().isEmpty())
+		{
+			applyCommands(result.getCommands(), w, context);
+		}
+		
+		log.debug("processResults: returning "+result);
+		return result.toString();
+	}
+	
+	/**
+	 * Executes hook commands in one pass, see {@link HookCommandPlan}: later
+	 * replacements of a datastream supersede earlier ones, the new contents
+	 * are canonicalized up front and all changes are committed as one version
+	 * of the object. Each change still gets its own audit record.
+	 * 
+	 * @param commands The commands in the order the hooks returned them
+	 * @param w Opened DOWriter to use for the modifications
+	 * @throws APIHooksException If a command failed
+	 */
+	private void applyCommands(List<HookCommand> commands, DOWriter w, Context context) throws APIHooksException
+	{
+		HookCommandPlan plan = new HookCommandPlan(commands);
+		plan.canonicalize(canonicalizeExecutor);
+		if(plan.getDropped()>0)
+		{
+			log.debug("processResults: "+plan);
 		}
 		
-		log.debug("processResults: returning "+verdict+": "+additionalInfo);
-		return verdict+": "+additionalInfo;
+		try
+		{
+			Date nowUTC = Server.getCurrentDate(context);
+			String responsibility = context.getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri);
+			for(HookCommand command : plan.getCommands())
+			{
+				String action, message;
+				switch(command.getType())
+				{
+					case REPLACE_INTO_DATASTREAM:
+						log.debug("processResults: got command: replaceIntoDatastream with DS "+command.getDatastream()+" and content "+command.getContent());
+						action = replaceIntoDatastream(w, command.getDatastream(), plan.getContent(command), nowUTC);
+						if(action==null)
+						{
+							// unchanged, no version and nothing to audit
+							continue;
+						}
+						message = "Phaidra Hooks";
+						break;
+					case PURGE_DATASTREAM:
+						log.debug("processResults: got command: purgeDatastream with DS "+command.getDatastream());
+						action = "purgeDatastream";
+						message = purgeDatastream(w, command.getDatastream());
+						break;
+					default:
+						continue;
+				}
+				
+	            // one audit record per change, as Fedora writes them
+				AuditRecord audit = new AuditRecord();
+	            audit.id = w.newAuditRecordID();
+	            audit.processType = "Fedora API-M";
+	            audit.action = action;
+	            audit.componentID = command.getDatastream();
+	            audit.responsibility = responsibility;
+	            audit.date = nowUTC;
+	            audit.justification = message;
+	            w.getAuditRecords().add(audit);
+			}
+		}
+		catch (ServerException e) 
+		{
+			throw new APIHooksException("processResults failed: "+e.getMessage(), e);
+		}
 	}
 	
 	/**
@@ -143,19 +1045,17 @@ public abstract class APIHooksImpl extends Module implements APIHooks {
 	 * 
 	 * @param w Opened DOWriter to use for the modifications
 	 * @param datastream Datastream name
-	 * @param dsContent New Datastream content
+	 * @param xmlContent New Datastream content, already canonicalized
+	 * @param nowUTC The date of the new version
+	 * @return String The action for the audit record, null if the content is unchanged
 	 * @throws APIHooksException
 	 */
-	private void replaceIntoDatastream(DOWriter w, Context context, String datastream, String dsContent) 
+	private String replaceIntoDatastream(DOWriter w, String datastream, byte[] xmlContent, Date nowUTC) 
 		throws APIHooksException
 	{
 		try 
 		{
-			Date nowUTC = Server.getCurrentDate(context);
-			
-			AuditRecord audit=new AuditRecord();
-            audit.id=w.newAuditRecordID();
-			
+			String action;
             DatastreamXMLMetadata newds = new DatastreamXMLMetadata();
 			Datastream orig = w.GetDatastream(datastream, null);
 			if(orig==null)
@@ -178,12 +1078,20 @@ public abstract class APIHooksImpl extends Module implements APIHooks {
 				newds.DSChecksumType = null;
 				newds.DSCreateDT = nowUTC;
 
-				newds.xmlContent = getEmbeddableXML(new InputSource(new StringReader(dsContent)));
+				newds.xmlContent = xmlContent;
 				
-				audit.action="addDatastream";
+				action="addDatastream";
 			}
 			else
 			{
+				// hooks often regenerate derived datastreams with the same content
+				byte[] current = ((DatastreamXMLMetadata) orig).xmlContent;
+				if(current!=null && Arrays.equals(current, xmlContent))
+				{
+					log.debug("replaceIntoDatastream: content of datastream ("+datastream+") unchanged, no new version");
+					return null;
+				}
+				
 				log.info("!!!!!!!!!!!!!!!!!! replaceIntoDatastream: updating existing datastream ("+datastream+")");
 				
 				// Datastream found - update it
@@ -204,20 +1112,13 @@ public abstract class APIHooksImpl extends Module implements APIHooks {
 	            newds.DSFormatURI=orig.DSFormatURI;
 	            newds.DSCreateDT=nowUTC;
 	            newds.DSChecksumType = orig.DSChecksumType;
-				newds.xmlContent = getEmbeddableXML(new InputSource(new StringReader(dsContent)));
+				newds.xmlContent = xmlContent;
 				
-				audit.action="modifyDatastreamByValue";
+				action="modifyDatastreamByValue";
 			}
 
 			w.addDatastream(newds, newds.DSVersionable);
-	
-            // add the audit record
-            audit.processType="Fedora API-M";
-            audit.componentID=newds.DatastreamID;
-            audit.responsibility=context.getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri);
-            audit.date=nowUTC;
-            audit.justification="Phaidra Hooks";
-            w.getAuditRecords().add(audit);			
+			return action;
 		} 
 		catch (ServerException e) 
 		{
@@ -230,9 +1131,10 @@ public abstract class APIHooksImpl extends Module implements APIHooks {
 	 * 
 	 * @param w Opened DOWriter to use for the modifications
 	 * @param datastream Datastream name
+	 * @return String The justification for the audit record
 	 * @throws APIHooksException
 	 */
-	private void purgeDatastream(DOWriter w, Context context, String datastream) 
+	private String purgeDatastream(DOWriter w, String datastream) 
 		throws APIHooksException
 	{
 		log.info("!!!!!!!!!!! purgeDatastream " + datastream);
@@ -240,18 +1142,7 @@ public abstract class APIHooksImpl extends Module implements APIHooks {
 		{
             Date[] deletedDates =
                 w.removeDatastream(datastream, null, null);
-            
-            AuditRecord audit = new AuditRecord();
-            audit.id = w.newAuditRecordID();
-            audit.processType = "Fedora API-M";
-            audit.action = "purgeDatastream";
-            audit.componentID = datastream;
-            audit.responsibility =
-                    context.getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri);
-            Date nowUTC = Server.getCurrentDate(context);
-            audit.date = nowUTC;
-            audit.justification = getPurgeLogMessage("datastream", datastream, null, null, deletedDates);
-            w.getAuditRecords().add(audit);
+            return getPurgeLogMessage("datastream", datastream, null, null, deletedDates);
 		}
 		catch (ServerException e) 
 		{
@@ -259,30 +1150,6 @@ public abstract class APIHooksImpl extends Module implements APIHooks {
 		}
 	}
 	
-    private byte[] getEmbeddableXML(InputSource in) throws GeneralException {
-        // parse with xerces and re-serialize the fixed xml to a byte array
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            OutputFormat fmt = new OutputFormat("XML", "UTF-8", true);
-            fmt.setIndent(2);
-            fmt.setLineWidth(120);
-            fmt.setPreserveSpace(false);
-            fmt.setOmitXMLDeclaration(true);
-            fmt.setOmitDocumentType(true);
-            XMLSerializer ser = new XMLSerializer(out, fmt);
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(in);
-            ser.serialize(doc);
-            return out.toByteArray();
-        } catch (Exception e) {
-            String message = e.getMessage();
-            if (message == null) message = "";
-            throw new GeneralException("XML was not well-formed. " + message, e);
-        }
-    }
-    
     private String getPurgeLogMessage(String kindaThing,
             String id,
             Date start,
@@ -321,6 +1188,32 @@ public abstract class APIHooksImpl extends Module implements APIHooks {
 		return buf.toString();
 	}    
 	
+	/**
+	 * Reads an optional integer parameter from fedora.fcfg.
+	 * 
+	 * @param name The parameter name
+	 * @param defaultValue The value to use if the parameter is not set
+	 * @return int The configured value or the default
+	 * @throws ModuleInitializationException If the parameter is not a number
+	 */
+	protected int getIntParameter(String name, int defaultValue) throws ModuleInitializationException
+	{
+		String value = getParameter(name);
+		if(value==null || value.trim().length()==0)
+		{
+			return defaultValue;
+		}
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch(NumberFormatException ex)
+		{
+			throw new ModuleInitializationException(
+					"APIHooksImpl: parameter "+name+" must be a number, got |"+value+"|", this.getRole());
+		}
+	}
+	
 	/**
 	 * Initializes the Module based on configuration parameters.
 	 * 
@@ -331,7 +1224,312 @@ public abstract class APIHooksImpl extends Module implements APIHooks {
 	public void initModule() throws ModuleInitializationException
 	{
 		super.initModule();
+		
+		// latency histograms and verdict counts, over JMX unless metricsjmx=false
+		metrics = new HookMetrics(!"false".equalsIgnoreCase(getParameter("metricsjmx")));
+		if(getParameter("metricsport")!=null)
+		{
+			int port = getIntParameter("metricsport", 0);
+			// loopback only unless metricsbindaddress is set, e.g. to 0.0.0.0 for all interfaces
+			String bindAddress = getParameter("metricsbindaddress");
+			try
+			{
+				InetSocketAddress bound = metrics.startHttpServer(bindAddress, port);
+				String host = bound.getAddress().getHostAddress();
+				log.info("serving hook metrics at http://"+(host.indexOf(':')>=0 ? "["+host+"]" : host)+":"+
+						bound.getPort()+"/metrics");
+			}
+			catch(IOException ex)
+			{
+				throw new ModuleInitializationException(
+						"APIHooksImpl: cannot serve hook metrics on "+
+						(bindAddress!=null ? bindAddress : "loopback")+" port "+port+": "+ex.getMessage(), this.getRole());
+			}
+		}
+		
+		// hook elements are matched by local name, and by namespace URI only if hooknamespace is set
+		resultParser = new HookResultParser(getParameter("hooknamespace"));
+		
+		// encoded subject attributes, shared by all transports
+		subjectCache = new SubjectAttributeCache(getIntParameter("subjectcachesize", 256));
+		
+		// datastream IDs for modifyDatastreamByValueCheckExists, dsidindexsize=0 disables it
+		int dsIdIndexSize = getIntParameter("dsidindexsize", 1000);
+		datastreamIdIndex = dsIdIndexSize>0 ? new DatastreamIdIndex(dsIdIndexSize) : null;
+		
+		// contents of replaceIntoDatastream commands, canonicalizethreads<2 serializes them in the calling thread
+		int canonicalizeThreads = getIntParameter("canonicalizethreads", 4);
+		if(canonicalizeThreads>1)
+		{
+			canonicalizeExecutor = Executors.newFixedThreadPool(canonicalizeThreads-1, new ThreadFactory() {
+				private int n = 0;
+				
+				public synchronized Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "phaidra-hooks-canonicalize-"+(n++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		
+		// circuit breakers and deadlines
+		breakerFailures = getIntParameter("breakerfailures", 5);
+		breakerSlowCall = getIntParameter("breakerslowcall", 0);
+		breakerOpenTime = getIntParameter("breakeropentime", 30)*1000L;
+		requestTimeout = getIntParameter("requesttimeout", 0);
+		log.debug("circuit breakers: failures="+breakerFailures+", slowCall="+breakerSlowCall+
+				"ms, openTime="+breakerOpenTime+"ms; requestTimeout="+requestTimeout+"ms");
+		
+		// the dispatch table: one entry per enabled method with its transport and options
+		String globalPolicy = getParameter("failurepolicy");
+		boolean anyCache = false, anyBatch = false, anyAsync = false;
+		for(String method : HOOK_METHODS)
+		{
+			if(getParameter(method)==null)
+			{
+				continue;
+			}
+			String type = getParameter(method+".transport");
+			String policy = getParameter(method+".failurepolicy");
+			HookMethod hookMethod = new HookMethod(method,
+					getTransport(method, type!=null ? type.trim().toLowerCase() : getDefaultTransport(), 
+							getParameter(method+".endpoint")),
+					"true".equalsIgnoreCase(getParameter(method+".cache")),
+					"true".equalsIgnoreCase(getParameter(method+".batch")),
+					"true".equalsIgnoreCase(getParameter(method+".async")),
+					"failopen".equalsIgnoreCase(policy!=null ? policy : globalPolicy),
+					HookFilter.compile(getParameter(method+".dsid"), getParameter(method+".mime"), 
+							getParameter(method+".pidns")));
+			hookMethods.put(method, hookMethod);
+			anyCache |= hookMethod.isCache();
+			anyBatch |= hookMethod.isBatch();
+			anyAsync |= hookMethod.isAsync();
+			log.info("hook method "+hookMethod);
+		}
+		
+		// the verdict cache is only needed if at least one method opted in with <method>.cache
+		if(anyCache)
+		{
+			int size = getIntParameter("verdictcachesize", 1000);
+			int ttl = getIntParameter("verdictcachettl", 60);
+			verdictCache = new VerdictCache(size, ttl*1000L);
+			log.debug("verdict cache enabled: size="+size+", ttl="+ttl+"s");
+		}
+		
+		// per-writer batches, only if a method opted in with <method>.batch
+		if(anyBatch)
+		{
+			batches = new IdentityHashMap<DOWriter, List<HookEvent>>();
+			log.debug("hook batching enabled");
+		}
+		
+		// background executor for post-commit hooks, only if a method opted in with <method>.async
+		if(anyAsync)
+		{
+			int threads = getIntParameter("postcommitthreads", 4);
+			int queueSize = getIntParameter("postcommitqueuesize", 1000);
+			postCommitExecutor = new KeyedSerialExecutor("phaidra-hooks-postcommit", threads, queueSize);
+			queueTimeout = getIntParameter("postcommitqueuetimeout", 10000);
+			log.debug("asynchronous post-commit hooks enabled: threads="+threads+", queueSize="+queueSize+
+					", queueTimeout="+queueTimeout+"ms");
+			metrics.setPostCommitExecutor(postCommitExecutor);
+			
+			// hooks of one object within postcommitcoalesce ms are committed together
+			long coalesceWindow = getIntParameter("postcommitcoalesce", 0);
+			if(coalesceWindow>0)
+			{
+				coalescer = new PostCommitCoalescer(coalesceWindow, new PostCommitCoalescer.Flush() {
+					public void flush(List<PostCommitEvent> events)
+					{
+						submitCoalesced(events);
+					}
+				});
+				log.debug("post-commit hooks coalesced over "+coalesceWindow+" ms");
+			}
+		}
+		
+		// durable outbox for post-commit hooks
+		if(getParameter("postcommitjournal")!=null)
+		{
+			File dir = new File(getParameter("postcommitjournal"));
+			if(!dir.isAbsolute())
+			{
+				dir = new File(getServer().getHomeDir(), getParameter("postcommitjournal"));
+			}
+			journal = new PostCommitJournal(dir, getIntParameter("postcommitjournalsegmentsize", 4096)*1024);
+			retryInterval = getIntParameter("postcommitretryinterval", 5)*1000L;
+			retryMax = getIntParameter("postcommitretrymax", 600)*1000L;
+			retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "phaidra-hooks-postcommit-retry");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			log.debug("post-commit journal enabled: "+dir);
+		}
+		
 		log.debug("initialized");
 	}
+	
+	public void postInitModule() throws ModuleInitializationException
+	{
+		super.postInitModule();
+		manager = (DOManager)getServer().getModule("org.fcrepo.server.storage.DOManager");
+		if(manager==null)
+		{
+			throw new ModuleInitializationException("Can't get DOManager module from Server.getModule", 
+					this.getRole());
+		}
+		
+		if(journal!=null)
+		{
+			final List<PostCommitEvent> pending;
+			try
+			{
+				pending = journal.open();
+			}
+			catch(IOException ex)
+			{
+				throw new ModuleInitializationException("Can't open post-commit journal: "+ex.getMessage(), 
+						this.getRole());
+			}
+			// give the server time to come up before replaying
+			retryScheduler.schedule(new Runnable() {
+				public void run()
+				{
+					log.info("replaying "+pending.size()+" unacknowledged post-commit hooks");
+					for(PostCommitEvent event : pending)
+					{
+						dispatchPostCommit(event, true);
+					}
+				}
+			}, getIntParameter("postcommitreplaydelay", 30), TimeUnit.SECONDS);
+			retryScheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						journal.compact();
+					}
+					catch(IOException ex)
+					{
+						log.warn("post-commit journal compaction failed: "+ex.getMessage());
+					}
+				}
+			}, 1, 1, TimeUnit.MINUTES);
+		}
+	}
+	
+	public void shutdownModule() throws ModuleShutdownException
+	{
+		if(coalescer!=null)
+		{
+			// close the open windows now
+			coalescer.shutdown();
+		}
+		if(postCommitExecutor!=null)
+		{
+			try
+			{
+				if(!postCommitExecutor.shutdown(getIntParameter("postcommitshutdowntimeout", 30)*1000L))
+				{
+					log.warn("post-commit hooks still queued at shutdown: "+postCommitExecutor);
+				}
+			}
+			catch(Exception ex)
+			{
+				log.warn("error waiting for post-commit hooks: "+ex.getMessage());
+			}
+			log.info("post-commit executor statistics: "+postCommitExecutor);
+		}
+		if(canonicalizeExecutor!=null)
+		{
+			canonicalizeExecutor.shutdown();
+		}
+		if(journal!=null)
+		{
+			// pending retries stay in the journal and are replayed on the next start
+			retryScheduler.shutdownNow();
+			log.info("post-commit journal statistics: "+journal);
+			journal.close();
+		}
+		if(verdictCache!=null)
+		{
+			log.info("verdict cache statistics: "+verdictCache);
+		}
+		log.info("subject attribute cache statistics: "+subjectCache);
+		if(datastreamIdIndex!=null)
+		{
+			log.info("datastream ID index statistics: "+datastreamIdIndex);
+		}
+		log.info("hook metrics:"+metrics);
+		metrics.close();
+		synchronized(breakers)
+		{
+			for(CircuitBreaker breaker : breakers.values())
+			{
+				log.info("circuit breaker statistics: "+breaker);
+			}
+		}
+		for(HookTransport transport : transports.values())
+		{
+			if(transport instanceof RESTHookTransport && ((RESTHookTransport)transport).getContentDigestCache()!=null)
+			{
+				log.info("content digest statistics for "+transport+": "+((RESTHookTransport)transport).getContentDigestCache());
+			}
+		}
+		if(httpClient!=null)
+		{
+			log.info("shutting down REST hook connection pool: "+httpClient);
+			httpClient.shutdown();
+		}
+		super.shutdownModule();
+	}
+	
+	/**
+	 * @return HookMetrics Latency histograms and verdict counts of the hooks
+	 */
+	public HookMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * @return PostCommitJournal The post-commit journal, null if not configured
+	 */
+	public PostCommitJournal getPostCommitJournal()
+	{
+		return journal;
+	}
+	
+	/**
+	 * @return KeyedSerialExecutor The post-commit executor, null if no method runs asynchronously
+	 */
+	public KeyedSerialExecutor getPostCommitExecutor()
+	{
+		return postCommitExecutor;
+	}
+	
+	/**
+	 * @return Map The circuit breakers by method, for monitoring
+	 */
+	public Map<String, CircuitBreaker> getCircuitBreakers()
+	{
+		synchronized(breakers)
+		{
+			return new HashMap<String, CircuitBreaker>(breakers);
+		}
+	}
+	
+	/**
+	 * @return VerdictCache The verdict cache, null if no method has caching enabled
+	 */
+	public VerdictCache getVerdictCache()
+	{
+		return verdictCache;
+	}
 
 }
\ No newline at end of file
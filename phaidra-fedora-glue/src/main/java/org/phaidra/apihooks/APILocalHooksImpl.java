@@ -0,0 +1,34 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fcrepo.server.Server;
+import org.fcrepo.server.errors.ModuleInitializationException;
+
+/**
+ * In-process API hook class. Methods are handled by the {@link HookHandler}s 
+ * inside Fedora; calls they do not answer go to the transport named in 
+ * <code>&lt;method&gt;.delegate</code> or <code>delegate</code> ("rest" or 
+ * "soap"), see {@link LocalHookTransport}.
+ */
+public class APILocalHooksImpl extends APIHooksImpl implements APIHooks 
+{
+	protected static Log log = LogFactory.getLog(APILocalHooksImpl.class);
+	
+	public APILocalHooksImpl(Map moduleParameters, Server server, String role)
+			throws ModuleInitializationException 
+	{
+		super(moduleParameters, server, role);
+	}
+	
+	protected String getDefaultTransport()
+	{
+		return "local";
+	}
+
+}
@@ -0,0 +1,111 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Request body in the binary hook protocol, see {@link HookWireFormat}.
+ * Like {@link FormRequestEntity} it is written while it is sent.
+ * {@link HookContent.Digest} parameters are sent as digests.
+ */
+public class BinaryRequestEntity implements RequestEntity
+{
+	private final String username;
+
+	private final String pid;
+
+	private final String[] attrs;
+
+	private final List<String> methods = new ArrayList<String>();
+
+	private final List<Object[]> params = new ArrayList<Object[]>();
+
+	/**
+	 * @param username The login id of the caller
+	 * @param pid The PID that is being accessed
+	 * @param attrs The subject attributes as name=value pairs
+	 */
+	public BinaryRequestEntity(String username, String pid, String[] attrs)
+	{
+		this.username = username;
+		this.pid = pid;
+		this.attrs = attrs;
+	}
+
+	/**
+	 * @param method The name of the method that calls the hook
+	 * @param params Method parameters, sent as <code>toString()</code>
+	 */
+	public void addEvent(String method, Object[] params)
+	{
+		this.methods.add(method);
+		this.params.add(params);
+	}
+
+	public boolean isRepeatable()
+	{
+		return true;
+	}
+
+	/**
+	 * @return long Always -1, the body is sent chunked
+	 */
+	public long getContentLength()
+	{
+		return -1;
+	}
+
+	public String getContentType()
+	{
+		return HookWireFormat.CONTENT_TYPE;
+	}
+
+	public void writeRequest(OutputStream out) throws IOException
+	{
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 8192));
+		data.writeInt(HookWireFormat.VERSION);
+		HookWireFormat.writeString(data, username);
+		HookWireFormat.writeString(data, pid);
+		data.writeInt(methods.size());
+		for(int i=0;i<methods.size();i++)
+		{
+			HookWireFormat.writeString(data, methods.get(i));
+			Object[] p = params.get(i);
+			data.writeInt(p.length);
+			for(int j=0;j<p.length;j++)
+			{
+				if(p[j] instanceof HookContent.Digest)
+				{
+					data.writeInt(HookWireFormat.DIGEST);
+					HookWireFormat.writeString(data, p[j].toString());
+				}
+				else if(p[j] instanceof HookContent)
+				{
+					// already UTF-8
+					byte[] b = ((HookContent)p[j]).bytes();
+					data.writeInt(b.length);
+					data.write(b);
+				}
+				else
+				{
+					HookWireFormat.writeString(data, p[j]==null ? null : p[j].toString());
+				}
+			}
+		}
+		data.writeInt(attrs.length);
+		for(int i=0;i<attrs.length;i++)
+		{
+			HookWireFormat.writeString(data, attrs[i]);
+		}
+		data.flush();
+	}
+}
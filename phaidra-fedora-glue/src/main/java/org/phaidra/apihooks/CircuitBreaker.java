@@ -0,0 +1,218 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Circuit breaker for the calls of one hook method.
+ *
+ * After <code>failureThreshold</code> consecutive failures (calls slower than
+ * <code>slowCallThreshold</code> count as failures) the breaker opens and
+ * calls are rejected without contacting the hook. After
+ * <code>openTime</code> it lets a single probe call through (half-open): if
+ * that succeeds the breaker closes again, otherwise it stays open for
+ * another <code>openTime</code>.
+ */
+public class CircuitBreaker implements CircuitBreakerMBean
+{
+	protected static Log log = LogFactory.getLog(CircuitBreaker.class);
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final String name;
+
+	private final int failureThreshold;
+
+	private final long slowCallThreshold;
+
+	private final long openTime;
+
+	private State state = State.CLOSED;
+
+	private int failures;
+
+	private long openedAt;
+
+	private boolean probing;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong opened = new AtomicLong();
+
+	private final AtomicLong halfOpened = new AtomicLong();
+
+	private final AtomicLong closed = new AtomicLong();
+
+	/**
+	 * @param name Name for log messages, e.g. the hook method
+	 * @param failureThreshold Consecutive failures that open the breaker
+	 * @param slowCallThreshold Calls taking longer than this many ms count as failures, 0 = off
+	 * @param openTime Time in ms the breaker stays open before probing
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long slowCallThreshold, long openTime)
+	{
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.slowCallThreshold = slowCallThreshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * @return boolean TRUE if the call may go to the hook
+	 */
+	public synchronized boolean allowRequest()
+	{
+		switch(state)
+		{
+			case CLOSED:
+				return true;
+			case OPEN:
+				if(System.currentTimeMillis()-openedAt<openTime)
+				{
+					rejected.incrementAndGet();
+					return false;
+				}
+				transition(State.HALF_OPEN);
+				halfOpened.incrementAndGet();
+				probing = true;
+				return true;
+			default:
+				// only one probe at a time
+				if(probing)
+				{
+					rejected.incrementAndGet();
+					return false;
+				}
+				probing = true;
+				return true;
+		}
+	}
+
+	/**
+	 * A hook call guarded by the breaker.
+	 */
+	public interface Call<T>
+	{
+		T run() throws APIHooksException;
+	}
+
+	/**
+	 * Runs a call that {@link #allowRequest()} let through and records how it
+	 * went. Any exception counts as failure, runtime exceptions included, so
+	 * that a failed probe never leaves the breaker half-open.
+	 *
+	 * @param call The call
+	 * @return T The result of the call
+	 * @throws APIHooksException If the call failed
+	 */
+	public <T> T record(Call<T> call) throws APIHooksException
+	{
+		long start = System.currentTimeMillis();
+		boolean succeeded = false;
+		try
+		{
+			T result = call.run();
+			succeeded = true;
+			return result;
+		}
+		finally
+		{
+			if(succeeded)
+			{
+				onSuccess(System.currentTimeMillis()-start);
+			}
+			else
+			{
+				onFailure();
+			}
+		}
+	}
+
+	/**
+	 * Records a completed call.
+	 *
+	 * @param duration Duration of the call in ms
+	 */
+	public synchronized void onSuccess(long duration)
+	{
+		if(slowCallThreshold>0 && duration>slowCallThreshold)
+		{
+			log.debug(name+": call took "+duration+" ms, counting it as failure");
+			onFailure();
+			return;
+		}
+		probing = false;
+		failures = 0;
+		if(state!=State.CLOSED)
+		{
+			transition(State.CLOSED);
+			closed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records a failed call.
+	 */
+	public synchronized void onFailure()
+	{
+		probing = false;
+		failures++;
+		if(state==State.HALF_OPEN || (state==State.CLOSED && failures>=failureThreshold))
+		{
+			transition(State.OPEN);
+			opened.incrementAndGet();
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	private void transition(State next)
+	{
+		log.warn("circuit breaker "+name+": "+state+" -> "+next+" after "+failures+" consecutive failures");
+		state = next;
+	}
+
+	public synchronized State getState()
+	{
+		return state;
+	}
+
+	public String getStateName()
+	{
+		return getState().name();
+	}
+
+	/** @return long Calls rejected because the breaker was open */
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+	/** @return long Transitions to OPEN */
+	public long getOpenedCount()
+	{
+		return opened.get();
+	}
+
+	/** @return long Transitions to HALF_OPEN */
+	public long getHalfOpenedCount()
+	{
+		return halfOpened.get();
+	}
+
+	/** @return long Transitions back to CLOSED */
+	public long getClosedCount()
+	{
+		return closed.get();
+	}
+
+	public String toString()
+	{
+		return name+": state="+getState()+", opened="+getOpenedCount()+", halfOpened="+getHalfOpenedCount()+
+			   ", closed="+getClosedCount()+", rejected="+getRejectedCount();
+	}
+}
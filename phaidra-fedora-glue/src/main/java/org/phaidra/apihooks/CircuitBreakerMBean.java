@@ -0,0 +1,21 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+/**
+ * JMX view of a {@link CircuitBreaker}.
+ */
+public interface CircuitBreakerMBean
+{
+	/** @return String CLOSED, OPEN or HALF_OPEN */
+	String getStateName();
+
+	long getRejectedCount();
+
+	long getOpenedCount();
+
+	long getHalfOpenedCount();
+
+	long getClosedCount();
+}
@@ -0,0 +1,137 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU set of the digests of datastream content recently sent
+ * to one hook endpoint.
+ *
+ * Content whose digest is in the set is sent as the digest only, assuming
+ * the hook still has it. A hook that does not answers with the verdict
+ * {@link #NEED_CONTENT}; the digests of that call are then forgotten and
+ * the call is repeated with the full content.
+ */
+public class ContentDigestCache
+{
+	/** Verdict of a hook that was sent a digest it does not know */
+	public static final String NEED_CONTENT = "NEEDCONTENT";
+
+	private final int maxSize;
+
+	private final Map<String, Boolean> digests;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong resends = new AtomicLong();
+
+	/**
+	 * @param maxSize Maximum number of digests kept
+	 */
+	public ContentDigestCache(int maxSize)
+	{
+		this.maxSize = maxSize;
+		this.digests = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+			{
+				return size()>ContentDigestCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Replaces the content the hook already has by its digest.
+	 *
+	 * @param params Method parameters
+	 * @return Object[] The parameters to send, <code>params</code> if nothing was replaced
+	 */
+	public Object[] replace(Object[] params)
+	{
+		Object[] rval = params;
+		for(int i=0;i<params.length;i++)
+		{
+			if(!(params[i] instanceof HookContent))
+			{
+				continue;
+			}
+			String digest = ((HookContent)params[i]).getDigest();
+			boolean known;
+			synchronized(digests)
+			{
+				known = digests.get(digest)!=null;
+			}
+			if(known)
+			{
+				hits.incrementAndGet();
+				if(rval==params)
+				{
+					rval = params.clone();
+				}
+				rval[i] = new HookContent.Digest(digest);
+			}
+			else
+			{
+				misses.incrementAndGet();
+			}
+		}
+		return rval;
+	}
+
+	/**
+	 * Remembers the content of a call the hook has answered.
+	 */
+	public void sent(Object[] params)
+	{
+		for(int i=0;i<params.length;i++)
+		{
+			if(params[i] instanceof HookContent)
+			{
+				String digest = ((HookContent)params[i]).getDigest();
+				synchronized(digests)
+				{
+					digests.put(digest, Boolean.TRUE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets the content of a call the hook answered with {@link #NEED_CONTENT}.
+	 */
+	public void forget(Object[] params)
+	{
+		resends.incrementAndGet();
+		for(int i=0;i<params.length;i++)
+		{
+			if(params[i] instanceof HookContent)
+			{
+				synchronized(digests)
+				{
+					digests.remove(((HookContent)params[i]).getDigest());
+				}
+			}
+		}
+	}
+
+	public int size()
+	{
+		synchronized(digests)
+		{
+			return digests.size();
+		}
+	}
+
+	public String toString()
+	{
+		return "size="+size()+"/"+maxSize+", sent as digest="+hits.get()+", sent in full="+misses.get()+
+			   ", resent="+resends.get();
+	}
+}
@@ -0,0 +1,195 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fcrepo.server.storage.DOWriter;
+
+/**
+ * Size-bounded LRU cache of the datastream IDs of recently used objects.
+ *
+ * {@link APIHooksAspect} records the datastreams each writer adds and
+ * removes, and applies the changes when the writer commits: added IDs are
+ * put into the set of the PID, a removed datastream or object drops the set.
+ * Changes of writers released without commit are discarded.
+ *
+ * Sets are loaded from a reader on a miss. A set read while another writer
+ * committed changes is not kept, see {@link #stamp()}.
+ */
+public class DatastreamIdIndex
+{
+	private final int maxSize;
+
+	private final Map<String, Set<String>> entries;
+
+	/** Changes by writer until it commits */
+	private final Map<DOWriter, Changes> pending = new IdentityHashMap<DOWriter, Changes>();
+
+	/** Counts commits that changed datastream IDs */
+	private final AtomicLong modifications = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private static class Changes
+	{
+		final List<String> added = new ArrayList<String>();
+		boolean removed;
+	}
+
+	/**
+	 * @param maxSize Maximum number of PIDs kept
+	 */
+	public DatastreamIdIndex(int maxSize)
+	{
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest)
+			{
+				return size()>DatastreamIdIndex.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return Boolean Whether the object has the datastream, null if the object is not cached
+	 */
+	public Boolean contains(String pid, String dsId)
+	{
+		Set<String> ids;
+		synchronized(entries)
+		{
+			ids = entries.get(pid);
+			if(ids!=null)
+			{
+				hits.incrementAndGet();
+				return Boolean.valueOf(ids.contains(dsId));
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return long To pass to {@link #put}, taken before the reader is opened
+	 */
+	public long stamp()
+	{
+		return modifications.get();
+	}
+
+	/**
+	 * Caches the datastream IDs read from a reader, unless a writer committed
+	 * changes since <code>stamp</code>.
+	 */
+	public void put(String pid, String[] dsIds, long stamp)
+	{
+		synchronized(entries)
+		{
+			if(modifications.get()==stamp)
+			{
+				entries.put(pid, new HashSet<String>(Arrays.asList(dsIds)));
+			}
+		}
+	}
+
+	/**
+	 * Records a datastream added by a writer.
+	 */
+	public void added(DOWriter w, String dsId)
+	{
+		synchronized(pending)
+		{
+			changes(w).added.add(dsId);
+		}
+	}
+
+	/**
+	 * Records a datastream or the whole object removed by a writer.
+	 */
+	public void removed(DOWriter w)
+	{
+		synchronized(pending)
+		{
+			changes(w).removed = true;
+		}
+	}
+
+	private Changes changes(DOWriter w)
+	{
+		Changes c = pending.get(w);
+		if(c==null)
+		{
+			c = new Changes();
+			pending.put(w, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Applies the changes of a writer that committed.
+	 */
+	public void committed(DOWriter w, String pid)
+	{
+		Changes c;
+		synchronized(pending)
+		{
+			c = pending.remove(w);
+		}
+		if(c==null)
+		{
+			return;
+		}
+		synchronized(entries)
+		{
+			modifications.incrementAndGet();
+			if(c.removed)
+			{
+				entries.remove(pid);
+				return;
+			}
+			Set<String> ids = entries.get(pid);
+			if(ids!=null)
+			{
+				ids.addAll(c.added);
+			}
+		}
+	}
+
+	/**
+	 * Drops the changes of a writer released without commit.
+	 */
+	public void discard(DOWriter w)
+	{
+		synchronized(pending)
+		{
+			pending.remove(w);
+		}
+	}
+
+	public int size()
+	{
+		synchronized(entries)
+		{
+			return entries.size();
+		}
+	}
+
+	public String toString()
+	{
+		return "size="+size()+"/"+maxSize+", hits="+hits.get()+", misses="+misses.get();
+	}
+}
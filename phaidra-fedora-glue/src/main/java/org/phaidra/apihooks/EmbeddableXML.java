@@ -0,0 +1,345 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.xml.serialize.OutputFormat;
+import org.apache.xml.serialize.XMLSerializer;
+import org.fcrepo.server.errors.GeneralException;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DocumentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.Attributes2;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributeListImpl;
+
+/**
+ * Checks XML for well-formedness and re-serializes it the way Fedora stores
+ * inline XML datastreams: indented by 2, 120 columns, no XML declaration, no
+ * DOCTYPE.
+ *
+ * The XML is parsed with SAX straight into the serializer, there is no DOM
+ * in between. The events are adjusted so that the output is byte-identical
+ * to serializing a DOM of the same document: attributes (including the
+ * namespace declarations) sorted by name, whitespace-only text dropped
+ * unless <code>xml:space="preserve"</code>, nothing from the DTD, comments and
+ * processing instructions before the root element written after it.
+ */
+@SuppressWarnings("deprecation")
+public class EmbeddableXML
+{
+	private static final SAXParserFactory factory = SAXParserFactory.newInstance();
+
+	static
+	{
+		factory.setNamespaceAware(true);
+		try
+		{
+			// report xmlns attributes, a DOM has them as attributes as well
+			factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+		}
+		catch(Exception ex)
+		{
+			throw new IllegalStateException("SAX parser does not support namespace-prefixes", ex);
+		}
+	}
+
+	/** Per-thread parser, SAX readers can be reused but not shared */
+	private static final ThreadLocal<XMLReader> reader = new ThreadLocal<XMLReader>();
+
+	/** Per-thread output buffer; buffers above 4 MB are not kept */
+	private static final ThreadLocal<HookBuffer> buffer = new ThreadLocal<HookBuffer>() {
+		protected HookBuffer initialValue()
+		{
+			return new HookBuffer(8192, 4*1024*1024);
+		}
+	};
+
+	/**
+	 * @param in The XML to serialize
+	 * @return byte[] The serialized XML in UTF-8
+	 * @throws GeneralException If the XML is not well-formed
+	 */
+	public static byte[] serialize(InputSource in) throws GeneralException
+	{
+		HookBuffer out = buffer.get();
+		try
+		{
+			OutputFormat fmt = new OutputFormat("XML", "UTF-8", true);
+			fmt.setIndent(2);
+			fmt.setLineWidth(120);
+			fmt.setPreserveSpace(false);
+			fmt.setOmitXMLDeclaration(true);
+			fmt.setOmitDocumentType(true);
+			XMLSerializer ser = new XMLSerializer(out, fmt);
+
+			XMLReader r = getReader();
+			// SAX1 events: the SAX2 startElement would move the xmlns attributes to the end
+			Filter filter = new Filter(ser.asDocumentHandler(), ser);
+			r.setContentHandler(filter);
+			r.setProperty("http://xml.org/sax/properties/lexical-handler", filter);
+			try
+			{
+				r.parse(in);
+			}
+			finally
+			{
+				// do not keep the serializer reachable from the pooled reader
+				r.setContentHandler(null);
+				r.setProperty("http://xml.org/sax/properties/lexical-handler", null);
+			}
+			return out.toByteArray();
+		}
+		catch(Exception e)
+		{
+			String message = e.getMessage();
+			if (message == null) message = "";
+			throw new GeneralException("XML was not well-formed. " + message, e);
+		}
+		finally
+		{
+			out.recycle();
+		}
+	}
+
+	private static XMLReader getReader() throws Exception
+	{
+		XMLReader r = reader.get();
+		if(r==null)
+		{
+			r = factory.newSAXParser().getXMLReader();
+			reader.set(r);
+		}
+		return r;
+	}
+
+	private static final Comparator<String[]> BY_QNAME = new Comparator<String[]>() {
+		public int compare(String[] a, String[] b)
+		{
+			return a[0].compareTo(b[0]);
+		}
+	};
+
+	/**
+	 * Passes the SAX events to the serializer in the form it would get them
+	 * when serializing a DOM.
+	 */
+	private static class Filter implements ContentHandler, LexicalHandler
+	{
+		private final DocumentHandler content;
+
+		private final LexicalHandler lexical;
+
+		/** Pending text, written as one node like the DOM would have it */
+		private final StringBuilder text = new StringBuilder();
+
+		/** xml:space="preserve" state of the open elements */
+		private final List<Boolean> preserveSpace = new ArrayList<Boolean>();
+
+		private boolean inCDATA;
+
+		private boolean emptyCDATA;
+
+		private boolean inDTD;
+
+		/** Comments (target null) and processing instructions before the root element */
+		private List<String[]> preRoot = new ArrayList<String[]>();
+
+		Filter(DocumentHandler content, LexicalHandler lexical)
+		{
+			this.content = content;
+			this.lexical = lexical;
+		}
+
+		private boolean isPreserveSpace()
+		{
+			return !preserveSpace.isEmpty() && preserveSpace.get(preserveSpace.size()-1).booleanValue();
+		}
+
+		private void flushText() throws SAXException
+		{
+			if(text.length()==0)
+			{
+				return;
+			}
+			String s = text.toString();
+			text.setLength(0);
+			// same test as BaseMarkupSerializer uses for DOM text nodes
+			if(isPreserveSpace() || s.replace('\n', ' ').trim().length()!=0)
+			{
+				content.characters(s.toCharArray(), 0, s.length());
+			}
+		}
+
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException
+		{
+			flushText();
+
+			// a DOM keeps attributes sorted by name and only serializes specified ones
+			String[][] sorted = new String[atts.getLength()][];
+			int n = 0;
+			for(int i=0;i<atts.getLength();i++)
+			{
+				if(atts instanceof Attributes2 && !((Attributes2)atts).isSpecified(i))
+				{
+					continue;
+				}
+				sorted[n++] = new String[] { atts.getQName(i), atts.getType(i), atts.getValue(i) };
+			}
+			Arrays.sort(sorted, 0, n, BY_QNAME);
+			AttributeListImpl attributes = new AttributeListImpl();
+			for(int i=0;i<n;i++)
+			{
+				attributes.addAttribute(sorted[i][0], sorted[i][1], sorted[i][2]);
+			}
+
+			String space = atts.getValue("xml:space");
+			preserveSpace.add(space==null ? Boolean.valueOf(isPreserveSpace()) : Boolean.valueOf("preserve".equals(space)));
+			content.startElement(qName, attributes);
+		}
+
+		public void endElement(String uri, String localName, String qName) throws SAXException
+		{
+			flushText();
+			preserveSpace.remove(preserveSpace.size()-1);
+			content.endElement(qName);
+			if(preserveSpace.isEmpty() && preRoot!=null)
+			{
+				// the DOM serializer writes what came before the root element after it
+				List<String[]> nodes = preRoot;
+				preRoot = null;
+				for(String[] node : nodes)
+				{
+					if(node[0]==null)
+					{
+						lexical.comment(node[1].toCharArray(), 0, node[1].length());
+					}
+					else
+					{
+						content.processingInstruction(node[0], node[1]);
+					}
+				}
+			}
+		}
+
+		public void characters(char[] ch, int start, int length) throws SAXException
+		{
+			if(inCDATA)
+			{
+				emptyCDATA = false;
+				content.characters(ch, start, length);
+			}
+			else
+			{
+				text.append(ch, start, length);
+			}
+		}
+
+		public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException
+		{
+			characters(ch, start, length);
+		}
+
+		public void startCDATA() throws SAXException
+		{
+			flushText();
+			inCDATA = true;
+			emptyCDATA = true;
+			lexical.startCDATA();
+		}
+
+		public void endCDATA() throws SAXException
+		{
+			if(emptyCDATA)
+			{
+				// the serializer only opens the section when it gets characters
+				content.characters(new char[0], 0, 0);
+			}
+			inCDATA = false;
+			lexical.endCDATA();
+		}
+
+		public void comment(char[] ch, int start, int length) throws SAXException
+		{
+			// comments in the DTD are not part of the DOM
+			if(inDTD)
+			{
+				return;
+			}
+			if(preRoot!=null && preserveSpace.isEmpty())
+			{
+				preRoot.add(new String[] { null, new String(ch, start, length) });
+				return;
+			}
+			flushText();
+			lexical.comment(ch, start, length);
+		}
+
+		public void processingInstruction(String target, String data) throws SAXException
+		{
+			if(preRoot!=null && preserveSpace.isEmpty())
+			{
+				preRoot.add(new String[] { target, data });
+				return;
+			}
+			flushText();
+			content.processingInstruction(target, data);
+		}
+
+		public void startDocument() throws SAXException
+		{
+			content.startDocument();
+		}
+
+		public void endDocument() throws SAXException
+		{
+			content.endDocument();
+		}
+
+		public void startDTD(String name, String publicId, String systemId)
+		{
+			inDTD = true;
+		}
+
+		public void endDTD()
+		{
+			inDTD = false;
+		}
+
+		/** Namespace declarations are passed as xmlns attributes instead */
+		public void startPrefixMapping(String prefix, String uri)
+		{
+		}
+
+		public void endPrefixMapping(String prefix)
+		{
+		}
+
+		public void setDocumentLocator(Locator locator)
+		{
+		}
+
+		public void skippedEntity(String name)
+		{
+		}
+
+		public void startEntity(String name)
+		{
+		}
+
+		public void endEntity(String name)
+		{
+		}
+	}
+}
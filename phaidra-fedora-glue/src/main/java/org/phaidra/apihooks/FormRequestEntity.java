@@ -0,0 +1,242 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * application/x-www-form-urlencoded request body that is percent-encoded
+ * while it is written to the connection.
+ *
+ * The body is never assembled in memory: each value is encoded through a
+ * small fixed buffer straight into the (chunked) output stream, so the heap
+ * used per request does not depend on the size of the parameters. The
+ * encoding is the same as {@link java.net.URLEncoder} with UTF-8.
+ */
+public class FormRequestEntity implements RequestEntity
+{
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+	private final List<String> names = new ArrayList<String>();
+
+	private final List<Object> values = new ArrayList<Object>();
+
+	/**
+	 * Appends a parameter to the body. The value is encoded when the body is
+	 * written; <code>null</code> is sent as an empty value.
+	 *
+	 * @param name Parameter name, must not need encoding
+	 * @param value Parameter value, sent as <code>value.toString()</code>
+	 */
+	public void add(String name, Object value)
+	{
+		names.add(name);
+		values.add(value);
+	}
+
+	/**
+	 * Appends parameters that are already encoded, see {@link #encode(String, String[])}.
+	 *
+	 * @param encoded The encoded parameters, empty for none
+	 */
+	public void addEncoded(byte[] encoded)
+	{
+		if(encoded.length>0)
+		{
+			names.add(null);
+			values.add(encoded);
+		}
+	}
+
+	/**
+	 * Encodes a parameter with several values, e.g. for {@link #addEncoded(byte[])}.
+	 *
+	 * @param name Parameter name, must not need encoding
+	 * @param values The values
+	 * @return byte[] <code>name=value1&amp;name=value2...</code>, encoded
+	 */
+	public static byte[] encode(String name, String[] values)
+	{
+		FormRequestEntity entity = new FormRequestEntity();
+		for(int i=0;i<values.length;i++)
+		{
+			entity.add(name, values[i]);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try
+		{
+			entity.writeRequest(out);
+		}
+		catch(IOException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+		return out.toByteArray();
+	}
+
+	public boolean isRepeatable()
+	{
+		return true;
+	}
+
+	/**
+	 * @return long Always -1, the body is sent chunked
+	 */
+	public long getContentLength()
+	{
+		return -1;
+	}
+
+	public String getContentType()
+	{
+		return "application/x-www-form-urlencoded";
+	}
+
+	public void writeRequest(OutputStream out) throws IOException
+	{
+		byte[] buf = new byte[BUFFER_SIZE];
+		int pos = 0;
+		for(int i=0;i<names.size();i++)
+		{
+			if(i>0)
+			{
+				pos = put(out, buf, pos, (byte)'&');
+			}
+			String name = names.get(i);
+			if(name==null)
+			{
+				byte[] encoded = (byte[])values.get(i);
+				for(int j=0;j<encoded.length;j++)
+				{
+					pos = put(out, buf, pos, encoded[j]);
+				}
+				continue;
+			}
+			for(int j=0;j<name.length();j++)
+			{
+				pos = put(out, buf, pos, (byte)name.charAt(j));
+			}
+			pos = put(out, buf, pos, (byte)'=');
+			Object value = values.get(i);
+			if(value instanceof HookContent)
+			{
+				// already UTF-8, no need to decode it first
+				pos = encode(out, buf, pos, ((HookContent)value).bytes());
+			}
+			else if(value!=null)
+			{
+				pos = encode(out, buf, pos, value.toString());
+			}
+		}
+		out.write(buf, 0, pos);
+		out.flush();
+	}
+
+	/**
+	 * Percent-encodes the UTF-8 representation of <code>s</code> into
+	 * <code>buf</code>, flushing it to <code>out</code> whenever it fills up.
+	 *
+	 * @return int The new write position in <code>buf</code>
+	 */
+	private static int encode(OutputStream out, byte[] buf, int pos, CharSequence s) throws IOException
+	{
+		int len = s.length();
+		for(int i=0;i<len;i++)
+		{
+			char c = s.charAt(i);
+			if((c>='a' && c<='z') || (c>='A' && c<='Z') || (c>='0' && c<='9') ||
+					c=='.' || c=='-' || c=='*' || c=='_')
+			{
+				pos = put(out, buf, pos, (byte)c);
+			}
+			else if(c==' ')
+			{
+				pos = put(out, buf, pos, (byte)'+');
+			}
+			else if(c<0x80)
+			{
+				pos = putEscaped(out, buf, pos, c);
+			}
+			else if(c<0x800)
+			{
+				pos = putEscaped(out, buf, pos, 0xC0 | (c >> 6));
+				pos = putEscaped(out, buf, pos, 0x80 | (c & 0x3F));
+			}
+			else if(Character.isHighSurrogate(c) && i+1<len && Character.isLowSurrogate(s.charAt(i+1)))
+			{
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				pos = putEscaped(out, buf, pos, 0xF0 | (cp >> 18));
+				pos = putEscaped(out, buf, pos, 0x80 | ((cp >> 12) & 0x3F));
+				pos = putEscaped(out, buf, pos, 0x80 | ((cp >> 6) & 0x3F));
+				pos = putEscaped(out, buf, pos, 0x80 | (cp & 0x3F));
+			}
+			else if(c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE)
+			{
+				// unpaired surrogate, URLEncoder sends '?' as well
+				pos = putEscaped(out, buf, pos, '?');
+			}
+			else
+			{
+				pos = putEscaped(out, buf, pos, 0xE0 | (c >> 12));
+				pos = putEscaped(out, buf, pos, 0x80 | ((c >> 6) & 0x3F));
+				pos = putEscaped(out, buf, pos, 0x80 | (c & 0x3F));
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Percent-encodes UTF-8 bytes like {@link #encode(OutputStream, byte[], int, CharSequence)}
+	 * encodes characters.
+	 *
+	 * @return int The new write position in <code>buf</code>
+	 */
+	private static int encode(OutputStream out, byte[] buf, int pos, byte[] b) throws IOException
+	{
+		for(int i=0;i<b.length;i++)
+		{
+			int c = b[i] & 0xFF;
+			if((c>='a' && c<='z') || (c>='A' && c<='Z') || (c>='0' && c<='9') ||
+					c=='.' || c=='-' || c=='*' || c=='_')
+			{
+				pos = put(out, buf, pos, b[i]);
+			}
+			else if(c==' ')
+			{
+				pos = put(out, buf, pos, (byte)'+');
+			}
+			else
+			{
+				pos = putEscaped(out, buf, pos, c);
+			}
+		}
+		return pos;
+	}
+
+	private static int putEscaped(OutputStream out, byte[] buf, int pos, int b) throws IOException
+	{
+		pos = put(out, buf, pos, (byte)'%');
+		pos = put(out, buf, pos, HEX[(b >> 4) & 0x0F]);
+		return put(out, buf, pos, HEX[b & 0x0F]);
+	}
+
+	private static int put(OutputStream out, byte[] buf, int pos, byte b) throws IOException
+	{
+		if(pos==buf.length)
+		{
+			out.write(buf, 0, pos);
+			pos = 0;
+		}
+		buf[pos] = b;
+		return pos+1;
+	}
+}
@@ -0,0 +1,83 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Growable byte buffer that is meant to be reused, e.g. held in a
+ * <code>ThreadLocal</code>. Buffers that grew beyond <code>maxRetained</code>
+ * bytes are shrunk again on {@link #recycle()}, so one huge response does not
+ * pin its memory forever.
+ */
+public class HookBuffer extends ByteArrayOutputStream
+{
+	private final int initialSize;
+
+	private final int maxRetained;
+
+	public HookBuffer(int initialSize, int maxRetained)
+	{
+		super(initialSize);
+		this.initialSize = initialSize;
+		this.maxRetained = maxRetained;
+	}
+
+	/**
+	 * Appends everything that is left in <code>in</code>. The stream is not closed.
+	 *
+	 * @param in The stream to read
+	 * @throws IOException If reading failed
+	 */
+	public void readFrom(InputStream in) throws IOException
+	{
+		int n;
+		while(true)
+		{
+			if(count==buf.length)
+			{
+				byte[] grown = new byte[buf.length << 1];
+				System.arraycopy(buf, 0, grown, 0, count);
+				buf = grown;
+			}
+			n = in.read(buf, count, buf.length-count);
+			if(n<0)
+			{
+				break;
+			}
+			count += n;
+		}
+	}
+
+	/**
+	 * Decodes the buffer content without copying it to a byte array first.
+	 */
+	public String toString(String charsetName) throws UnsupportedEncodingException
+	{
+		return new String(buf, 0, count, charsetName);
+	}
+
+	/**
+	 * @return byte[] The internal array, valid up to {@link #size()}
+	 */
+	public byte[] array()
+	{
+		return buf;
+	}
+
+	/**
+	 * Empties the buffer for the next use and drops an oversized backing array.
+	 */
+	public void recycle()
+	{
+		count = 0;
+		if(buf.length>maxRetained)
+		{
+			buf = new byte[initialSize];
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+/**
+ * A command returned by a hook, to be executed on the object that is being
+ * modified (e.g. <code>ph:replaceIntoDatastream</code>).
+ */
+public class HookCommand
+{
+	public enum Type { REPLACE_INTO_DATASTREAM, PURGE_DATASTREAM }
+
+	private final Type type;
+
+	private final String datastream;
+
+	private final String content;
+
+	public HookCommand(Type type, String datastream, String content)
+	{
+		this.type = type;
+		this.datastream = datastream;
+		this.content = content;
+	}
+
+	public static HookCommand replaceIntoDatastream(String datastream, String content)
+	{
+		return new HookCommand(Type.REPLACE_INTO_DATASTREAM, datastream, content);
+	}
+
+	public static HookCommand purgeDatastream(String datastream)
+	{
+		return new HookCommand(Type.PURGE_DATASTREAM, datastream, null);
+	}
+
+	public Type getType()
+	{
+		return type;
+	}
+
+	/** @return String The datastream ID the command operates on */
+	public String getDatastream()
+	{
+		return datastream;
+	}
+
+	/** @return String The new XML content for replaceIntoDatastream, null otherwise */
+	public String getContent()
+	{
+		return content;
+	}
+
+	public String toString()
+	{
+		return type+" "+datastream;
+	}
+}
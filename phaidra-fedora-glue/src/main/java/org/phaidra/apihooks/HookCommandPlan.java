@@ -0,0 +1,204 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.xml.sax.InputSource;
+
+/**
+ * The commands of one or more hook results, prepared to be applied to a
+ * writer in one pass.
+ *
+ * A <code>replaceIntoDatastream</code> that is followed by another one for
+ * the same datastream is dropped, the last one wins. A
+ * <code>purgeDatastream</code> in between keeps both, the datastream is
+ * purged and created again. The distinct contents are canonicalized with
+ * {@link EmbeddableXML} before anything is applied, in parallel if there is
+ * more than one and an executor is given.
+ */
+public class HookCommandPlan
+{
+	private final List<HookCommand> commands;
+
+	/** Canonical XML by the content returned by the hook */
+	private final Map<String, byte[]> canonical = new HashMap<String, byte[]>();
+
+	private final int dropped;
+
+	/**
+	 * @param commands The commands in the order the hooks returned them
+	 */
+	public HookCommandPlan(List<HookCommand> commands)
+	{
+		List<HookCommand> plan = new ArrayList<HookCommand>(commands.size());
+		// index in plan of the last replace of each datastream since its last purge
+		Map<String, Integer> replaces = new HashMap<String, Integer>();
+		int dropped = 0;
+		for(HookCommand command : commands)
+		{
+			if(command.getType()==HookCommand.Type.REPLACE_INTO_DATASTREAM)
+			{
+				Integer previous = replaces.put(command.getDatastream(), Integer.valueOf(plan.size()));
+				if(previous!=null)
+				{
+					plan.set(previous.intValue(), null);
+					dropped++;
+				}
+			}
+			else
+			{
+				replaces.remove(command.getDatastream());
+			}
+			plan.add(command);
+		}
+		this.commands = new ArrayList<HookCommand>(plan.size()-dropped);
+		for(HookCommand command : plan)
+		{
+			if(command!=null)
+			{
+				this.commands.add(command);
+			}
+		}
+		this.dropped = dropped;
+	}
+
+	/**
+	 * Canonicalizes the content of all remaining <code>replaceIntoDatastream</code>
+	 * commands, each distinct content once.
+	 *
+	 * @param executor Runs all but one of the serializations, null to run them in this thread
+	 * @throws APIHooksException If any content is missing or not well-formed XML
+	 */
+	public void canonicalize(ExecutorService executor) throws APIHooksException
+	{
+		for(HookCommand command : commands)
+		{
+			// checked before anything is submitted
+			if(command.getType()==HookCommand.Type.REPLACE_INTO_DATASTREAM && command.getContent()==null)
+			{
+				throw new APIHooksException("replaceIntoDatastream failed: no content for datastream "+
+						command.getDatastream());
+			}
+		}
+		Map<String, Future<byte[]>> pending = new LinkedHashMap<String, Future<byte[]>>();
+		String inline = null;
+		for(HookCommand command : commands)
+		{
+			String content = command.getContent();
+			if(command.getType()!=HookCommand.Type.REPLACE_INTO_DATASTREAM || canonical.containsKey(content) ||
+					pending.containsKey(content) || content.equals(inline))
+			{
+				continue;
+			}
+			if(inline==null)
+			{
+				// this thread does its share instead of waiting
+				inline = content;
+			}
+			else if(executor==null)
+			{
+				canonical.put(content, serialize(content));
+			}
+			else
+			{
+				final String xml = content;
+				pending.put(content, executor.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception
+					{
+						return serialize(xml);
+					}
+				}));
+			}
+		}
+
+		APIHooksException failure = null;
+		if(inline!=null)
+		{
+			try
+			{
+				canonical.put(inline, serialize(inline));
+			}
+			catch(APIHooksException ex)
+			{
+				failure = ex;
+			}
+		}
+		for(Map.Entry<String, Future<byte[]>> entry : pending.entrySet())
+		{
+			try
+			{
+				canonical.put(entry.getKey(), entry.getValue().get());
+			}
+			catch(ExecutionException ex)
+			{
+				if(failure==null)
+				{
+					failure = ex.getCause() instanceof APIHooksException ? (APIHooksException)ex.getCause() :
+						new APIHooksException("replaceIntoDatastream failed: "+ex.getCause(), ex.getCause());
+				}
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new APIHooksException("replaceIntoDatastream interrupted", ex);
+			}
+		}
+		if(failure!=null)
+		{
+			throw failure;
+		}
+	}
+
+	private static byte[] serialize(String content) throws APIHooksException
+	{
+		try
+		{
+			return EmbeddableXML.serialize(new InputSource(new StringReader(content)));
+		}
+		catch(Exception e)
+		{
+			throw new APIHooksException("replaceIntoDatastream failed: "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return List The commands to apply, in order
+	 */
+	public List<HookCommand> getCommands()
+	{
+		return commands;
+	}
+
+	/**
+	 * @param command A <code>replaceIntoDatastream</code> command of this plan
+	 * @return byte[] Its canonical XML, see {@link #canonicalize(ExecutorService)}
+	 */
+	public byte[] getContent(HookCommand command)
+	{
+		return canonical.get(command.getContent());
+	}
+
+	/**
+	 * @return int The number of commands dropped because a later one replaced the same datastream
+	 */
+	public int getDropped()
+	{
+		return dropped;
+	}
+
+	public String toString()
+	{
+		return commands.size()+" commands ("+dropped+" superseded), "+canonical.size()+" distinct contents";
+	}
+}
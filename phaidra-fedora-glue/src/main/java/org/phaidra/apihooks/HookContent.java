@@ -0,0 +1,106 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Datastream content passed to a hook as a method parameter: a view of the
+ * UTF-8 bytes of the datastream, not a copy. The REST transport writes the
+ * bytes as they are, or sends the digest instead, see 
+ * {@link ContentDigestCache}. <code>toString()</code> decodes the content 
+ * for everything else.
+ */
+public class HookContent
+{
+	private final byte[] content;
+
+	private volatile String digest;
+
+	/**
+	 * @param content The UTF-8 datastream content, which must not change afterwards
+	 */
+	public HookContent(byte[] content)
+	{
+		this.content = content;
+	}
+
+	/**
+	 * @return ByteBuffer A read-only view of the UTF-8 content
+	 */
+	public ByteBuffer asByteBuffer()
+	{
+		return ByteBuffer.wrap(content).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return int The length of the content in bytes
+	 */
+	public int length()
+	{
+		return content.length;
+	}
+
+	/** The content for the transports; not to be modified */
+	byte[] bytes()
+	{
+		return content;
+	}
+
+	/**
+	 * @return String The hex SHA-1 of the UTF-8 content
+	 */
+	public String getDigest()
+	{
+		String d = digest;
+		if(d==null)
+		{
+			MessageDigest md = SubjectAttributes.newDigest();
+			md.update(content);
+			d = SubjectAttributes.toHex(md.digest());
+			digest = d;
+		}
+		return d;
+	}
+
+	/**
+	 * @return String The decoded content
+	 */
+	public String toString()
+	{
+		try
+		{
+			return new String(content, "UTF-8");
+		}
+		catch(UnsupportedEncodingException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Stands in for content the hook already has; sent as the digest only.
+	 */
+	public static class Digest
+	{
+		private final String digest;
+
+		public Digest(String digest)
+		{
+			this.digest = digest;
+		}
+
+		public String getDigest()
+		{
+			return digest;
+		}
+
+		public String toString()
+		{
+			return digest;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+/**
+ * Time budget of the API call that is being processed by the current thread.
+ * The outermost hooked API-M call starts the budget, all hook calls made
+ * while it runs have to finish within what is left of it.
+ */
+public class HookDeadline
+{
+	private static final ThreadLocal<long[]> deadline = new ThreadLocal<long[]>();
+
+	/**
+	 * Starts the budget unless an outer call already did.
+	 *
+	 * @param budget Budget in ms, 0 = no budget
+	 * @return boolean TRUE if this call started the budget and has to {@link #end()} it
+	 */
+	public static boolean begin(long budget)
+	{
+		if(budget<=0 || deadline.get()!=null)
+		{
+			return false;
+		}
+		deadline.set(new long[] { System.currentTimeMillis()+budget });
+		return true;
+	}
+
+	public static void end()
+	{
+		deadline.remove();
+	}
+
+	/**
+	 * @return long Remaining budget in ms, Long.MAX_VALUE if there is no budget
+	 */
+	public static long remaining()
+	{
+		long[] d = deadline.get();
+		return d==null ? Long.MAX_VALUE : d[0]-System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the timeout to use for a single hook call: the configured one,
+	 * shortened to what is left of the budget.
+	 *
+	 * @param configured The configured timeout in ms, 0 = none
+	 * @return int The timeout in ms, 0 = none
+	 */
+	public static int callTimeout(int configured)
+	{
+		long remaining = remaining();
+		if(remaining==Long.MAX_VALUE)
+		{
+			return configured;
+		}
+		int timeout = (int)Math.max(1, Math.min(remaining, Integer.MAX_VALUE));
+		return configured>0 ? Math.min(configured, timeout) : timeout;
+	}
+
+	/**
+	 * As {@link #callTimeout(int)}, for timeouts given as long.
+	 *
+	 * @param configured The configured timeout in ms, 0 = none
+	 * @return long The timeout in ms, 0 = none
+	 */
+	public static long callTimeout(long configured)
+	{
+		long remaining = remaining();
+		if(remaining==Long.MAX_VALUE)
+		{
+			return configured;
+		}
+		long timeout = Math.max(1, remaining);
+		return configured>0 ? Math.min(configured, timeout) : timeout;
+	}
+}
@@ -0,0 +1,54 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import org.fcrepo.server.Context;
+
+/**
+ * A single hook call: the method, the calling context, the PID and the
+ * method parameters.
+ */
+public class HookEvent
+{
+	private final String method;
+
+	private final Context context;
+
+	private final String pid;
+
+	private final Object[] params;
+
+	public HookEvent(String method, Context context, String pid, Object[] params)
+	{
+		this.method = method;
+		this.context = context;
+		this.pid = pid;
+		this.params = params;
+	}
+
+	public String getMethod()
+	{
+		return method;
+	}
+
+	public Context getContext()
+	{
+		return context;
+	}
+
+	public String getPid()
+	{
+		return pid;
+	}
+
+	public Object[] getParams()
+	{
+		return params;
+	}
+
+	public String toString()
+	{
+		return method+" "+pid;
+	}
+}
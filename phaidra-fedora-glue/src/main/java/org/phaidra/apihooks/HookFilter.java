@@ -0,0 +1,173 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The calls a hook method is subscribed to, from fedora.fcfg:
+ *
+ * <pre>
+ * &lt;method&gt;.dsid   comma-separated datastream IDs, e.g. UWMETADATA,RELS-EXT
+ * &lt;method&gt;.mime   comma-separated MIME types, "text/*" matches all text types
+ * &lt;method&gt;.pidns  comma-separated PID namespaces, e.g. o,test
+ * </pre>
+ *
+ * A call is dispatched if it matches every list that is configured. Calls
+ * without a datastream (modifyObject, purgeRelationship, ingest) are not checked
+ * against <code>dsid</code> and <code>mime</code>.
+ */
+public class HookFilter
+{
+	/** null if not configured */
+	private final Set<String> datastreams;
+
+	private final Set<String> mimeTypes;
+
+	/** "type/" of the "type/*" entries */
+	private final String[] mimePrefixes;
+
+	private final String[] namespaces;
+
+	private HookFilter(Set<String> datastreams, Set<String> mimeTypes, String[] mimePrefixes, String[] namespaces)
+	{
+		this.datastreams = datastreams;
+		this.mimeTypes = mimeTypes;
+		this.mimePrefixes = mimePrefixes;
+		this.namespaces = namespaces;
+	}
+
+	/**
+	 * @param dsid The value of <code>&lt;method&gt;.dsid</code>, may be null
+	 * @param mime The value of <code>&lt;method&gt;.mime</code>, may be null
+	 * @param pidns The value of <code>&lt;method&gt;.pidns</code>, may be null
+	 * @return HookFilter The filter, null if nothing is configured
+	 */
+	public static HookFilter compile(String dsid, String mime, String pidns)
+	{
+		if(dsid==null && mime==null && pidns==null)
+		{
+			return null;
+		}
+		Set<String> mimeTypes = null;
+		String[] mimePrefixes = null;
+		if(mime!=null)
+		{
+			mimeTypes = new HashSet<String>();
+			List<String> prefixes = new ArrayList<String>();
+			for(String type : split(mime))
+			{
+				if(type.endsWith("/*"))
+				{
+					prefixes.add(type.substring(0, type.length()-1).toLowerCase());
+				}
+				else
+				{
+					mimeTypes.add(type.toLowerCase());
+				}
+			}
+			mimePrefixes = prefixes.toArray(new String[prefixes.size()]);
+		}
+		List<String> ns = pidns!=null ? split(pidns) : null;
+		return new HookFilter(dsid!=null ? new HashSet<String>(split(dsid)) : null, mimeTypes, mimePrefixes,
+				ns!=null ? ns.toArray(new String[ns.size()]) : null);
+	}
+
+	private static List<String> split(String list)
+	{
+		List<String> values = new ArrayList<String>();
+		for(String value : list.split(","))
+		{
+			value = value.trim();
+			if(value.length()>0)
+			{
+				values.add(value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @param pid The PID of the call
+	 * @param datastream The datastream ID, null if the call has none
+	 * @param mimeType The MIME type of the datastream, null if the call has none
+	 * @return boolean TRUE if the hook is to be called
+	 */
+	public boolean matches(String pid, String datastream, String mimeType)
+	{
+		if(datastreams!=null && datastream!=null && !datastreams.contains(datastream))
+		{
+			return false;
+		}
+		if(mimeTypes!=null && mimeType!=null && !matchesMimeType(mimeType))
+		{
+			return false;
+		}
+		return namespaces==null || pid==null || matchesNamespace(pid);
+	}
+
+	private boolean matchesMimeType(String mimeType)
+	{
+		if(mimeTypes.contains(mimeType))
+		{
+			return true;
+		}
+		// parameters like "; charset=UTF-8" are ignored
+		int end = mimeType.indexOf(';');
+		String type = (end<0 ? mimeType : mimeType.substring(0, end)).trim().toLowerCase();
+		if(mimeTypes.contains(type))
+		{
+			return true;
+		}
+		for(String prefix : mimePrefixes)
+		{
+			if(type.startsWith(prefix))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matchesNamespace(String pid)
+	{
+		for(String ns : namespaces)
+		{
+			if(pid.length()>ns.length() && pid.charAt(ns.length())==':' && pid.startsWith(ns))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		if(datastreams!=null)
+		{
+			sb.append("dsid=").append(datastreams);
+		}
+		if(mimeTypes!=null)
+		{
+			sb.append(sb.length()>0 ? " " : "").append("mime=").append(mimeTypes);
+			for(String prefix : mimePrefixes)
+			{
+				sb.append(" ").append(prefix).append("*");
+			}
+		}
+		if(namespaces!=null)
+		{
+			sb.append(sb.length()>0 ? " " : "").append("pidns=");
+			for(int i=0;i<namespaces.length;i++)
+			{
+				sb.append(i>0 ? "," : "").append(namespaces[i]);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,43 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.Map;
+
+import org.fcrepo.server.Context;
+
+/**
+ * A hook rule that runs inside Fedora instead of being called remotely.
+ *
+ * Handlers are listed in the <code>localhandlers</code> module parameter or 
+ * registered in <code>META-INF/services/org.phaidra.apihooks.HookHandler</code>.
+ * Methods routed to <code>&lt;method&gt;.transport=local</code> ask the 
+ * handlers in order; the first one that returns a result answers the call. 
+ * If none does, the call goes on to <code>&lt;method&gt;.delegate</code> 
+ * (e.g. "rest"), or is answered with "OK" if there is no delegate.
+ *
+ * Implementations need a public no-argument constructor and must be thread-safe.
+ */
+public interface HookHandler
+{
+	/**
+	 * Called once when the hooks module is initialized.
+	 *
+	 * @param parameters All parameters of the hooks module in fedora.fcfg
+	 * @throws APIHooksException If the handler cannot be used with this configuration
+	 */
+	void init(Map<String, String> parameters) throws APIHooksException;
+
+	/**
+	 * Handles a hook call.
+	 *
+	 * @param method The name of the method that calls the hook
+	 * @param context The calling context to get user information from
+	 * @param pid The PID that is being accessed
+	 * @param params Method parameters, depend on the method called; datastream content is a {@link HookContent}
+	 * @return HookResult The verdict and the commands, null to leave the call to the next handler
+	 * @throws APIHooksException If the handler failed
+	 */
+	HookResult handle(String method, Context context, String pid, Object[] params) throws APIHooksException;
+}
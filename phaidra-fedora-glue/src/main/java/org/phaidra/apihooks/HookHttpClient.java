@@ -0,0 +1,257 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * Shared HTTP client for the REST hooks.
+ *
+ * Keeps a bounded pool of persistent (keep-alive) connections to the hook
+ * endpoint, so that consecutive hook calls don't pay the TCP/TLS setup again.
+ * Idle connections are closed by a background thread after
+ * <code>idleTimeout</code> milliseconds.
+ *
+ * The wait for a pooled connection and the connect timeout are shortened to
+ * what is left of the {@link HookDeadline} of the calling thread.
+ */
+public class HookHttpClient implements HookHttpClientMBean
+{
+	private final DeadlineConnectionManager m_connectionManager;
+
+	private final HttpClient m_client;
+
+	private final IdleConnectionTimeoutThread m_idleThread;
+
+	private final AtomicLong m_requests = new AtomicLong();
+
+	private final AtomicLong m_failures = new AtomicLong();
+
+	private final AtomicLong m_poolTimeouts = new AtomicLong();
+
+	private final AtomicInteger m_active = new AtomicInteger();
+
+	private final AtomicInteger m_peakActive = new AtomicInteger();
+
+	/**
+	 * @param maxConnections Maximum number of pooled connections
+	 * @param maxConnectionsPerHost Maximum number of pooled connections per host
+	 * @param connectTimeout Connect timeout in ms (0 = infinite)
+	 * @param readTimeout Socket read timeout in ms (0 = infinite)
+	 * @param poolTimeout Maximum time in ms to wait for a free pooled connection
+	 * @param idleTimeout Idle connections are closed after this many ms
+	 */
+	public HookHttpClient(int maxConnections, int maxConnectionsPerHost, int connectTimeout,
+			int readTimeout, long poolTimeout, long idleTimeout)
+	{
+		m_connectionManager = new DeadlineConnectionManager(connectTimeout);
+		HttpConnectionManagerParams params = m_connectionManager.getParams();
+		params.setMaxTotalConnections(maxConnections);
+		params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+		params.setConnectionTimeout(connectTimeout);
+		params.setSoTimeout(readTimeout);
+		params.setStaleCheckingEnabled(true);
+		params.setTcpNoDelay(true);
+
+		m_client = new HttpClient(m_connectionManager);
+		m_client.getParams().setConnectionManagerTimeout(poolTimeout);
+
+		m_idleThread = new IdleConnectionTimeoutThread();
+		m_idleThread.setName("phaidra-hooks-idle-connections");
+		m_idleThread.setDaemon(true);
+		m_idleThread.setConnectionTimeout(idleTimeout);
+		m_idleThread.setTimeoutInterval(Math.max(1000, idleTimeout / 2));
+		m_idleThread.addConnectionManager(m_connectionManager);
+		m_idleThread.start();
+	}
+
+	/**
+	 * Executes the given method using a pooled connection. The caller must call
+	 * <code>releaseConnection()</code> on the method once the response body
+	 * has been consumed, otherwise the connection is not returned to the pool.
+	 *
+	 * @param method The method to execute
+	 * @return int The HTTP status code
+	 * @throws IOException If the request failed
+	 */
+	public int execute(HttpMethod method) throws IOException
+	{
+		m_requests.incrementAndGet();
+		int active = m_active.incrementAndGet();
+		int peak = m_peakActive.get();
+		while(active>peak && !m_peakActive.compareAndSet(peak, active))
+		{
+			peak = m_peakActive.get();
+		}
+		try
+		{
+			return m_client.executeMethod(method);
+		}
+		catch(ConnectionPoolTimeoutException ex)
+		{
+			m_poolTimeouts.incrementAndGet();
+			m_failures.incrementAndGet();
+			throw ex;
+		}
+		catch(IOException ex)
+		{
+			m_failures.incrementAndGet();
+			throw ex;
+		}
+		finally
+		{
+			m_active.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Cuts the pool wait and the connect timeout of every checkout down to the
+	 * remaining deadline. HttpClient takes both from shared parameters, but the
+	 * checkout happens in the thread making the hook call.
+	 */
+	static class DeadlineConnectionManager extends MultiThreadedHttpConnectionManager
+	{
+		private final int connectTimeout;
+
+		/** Connections checked out and not yet released */
+		private final AtomicInteger leased = new AtomicInteger();
+
+		/** Threads in a checkout, most of them waiting for a free connection */
+		private final AtomicInteger waiting = new AtomicInteger();
+
+		/** Total time in ns spent in checkouts */
+		private final AtomicLong waitTime = new AtomicLong();
+
+		DeadlineConnectionManager(int connectTimeout)
+		{
+			this.connectTimeout = connectTimeout;
+		}
+
+		public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+				throws ConnectionPoolTimeoutException
+		{
+			HttpConnection conn;
+			waiting.incrementAndGet();
+			long start = System.nanoTime();
+			try
+			{
+				conn = super.getConnectionWithTimeout(hostConfiguration, HookDeadline.callTimeout(timeout));
+			}
+			finally
+			{
+				waitTime.addAndGet(System.nanoTime()-start);
+				waiting.decrementAndGet();
+			}
+			leased.incrementAndGet();
+			// the connection is ours until it is released, set on every checkout
+			conn.getParams().setConnectionTimeout(HookDeadline.callTimeout(connectTimeout));
+			return conn;
+		}
+
+		public void releaseConnection(HttpConnection conn)
+		{
+			leased.decrementAndGet();
+			super.releaseConnection(conn);
+		}
+	}
+
+	/**
+	 * Closes all pooled connections and stops the idle connection thread.
+	 */
+	public void shutdown()
+	{
+		m_idleThread.shutdown();
+		m_connectionManager.shutdown();
+	}
+
+	/** @return int Number of connections currently held by the pool (idle and in use) */
+	public int getConnectionsInPool()
+	{
+		return m_connectionManager.getConnectionsInPool();
+	}
+
+	/** @return int Number of pooled connections checked out by a request */
+	public int getLeasedConnections()
+	{
+		return m_connectionManager.leased.get();
+	}
+
+	/** @return int Number of pooled connections waiting for a request */
+	public int getIdleConnections()
+	{
+		return Math.max(0, getConnectionsInPool()-getLeasedConnections());
+	}
+
+	/** @return int Number of requests waiting for a free connection */
+	public int getWaitingRequests()
+	{
+		return m_connectionManager.waiting.get();
+	}
+
+	/** @return long Total time in ms requests waited for a free connection */
+	public long getPoolWaitTime()
+	{
+		return m_connectionManager.waitTime.get()/1000000;
+	}
+
+	/** @return int Maximum number of connections the pool may hold */
+	public int getMaxConnections()
+	{
+		return m_connectionManager.getParams().getMaxTotalConnections();
+	}
+
+	/** @return int Number of requests currently executing */
+	public int getActiveRequests()
+	{
+		return m_active.get();
+	}
+
+	/** @return int Highest number of concurrently executing requests seen */
+	public int getPeakActiveRequests()
+	{
+		return m_peakActive.get();
+	}
+
+	/** @return long Total number of requests executed */
+	public long getRequestCount()
+	{
+		return m_requests.get();
+	}
+
+	/** @return long Number of requests that failed with an I/O error */
+	public long getFailureCount()
+	{
+		return m_failures.get();
+	}
+
+	/** @return long Number of requests that timed out waiting for a free connection */
+	public long getPoolTimeoutCount()
+	{
+		return m_poolTimeouts.get();
+	}
+
+	public String toString()
+	{
+		return "pool="+getConnectionsInPool()+"/"+getMaxConnections()+
+			   ", leased="+getLeasedConnections()+
+			   ", waiting="+getWaitingRequests()+
+			   ", poolWait="+getPoolWaitTime()+"ms"+
+			   ", active="+getActiveRequests()+
+			   ", peakActive="+getPeakActiveRequests()+
+			   ", requests="+getRequestCount()+
+			   ", failures="+getFailureCount()+
+			   ", poolTimeouts="+getPoolTimeoutCount();
+	}
+}
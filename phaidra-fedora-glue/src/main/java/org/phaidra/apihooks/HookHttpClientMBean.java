@@ -0,0 +1,32 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+/**
+ * JMX view of the connection pool of a {@link HookHttpClient}.
+ */
+public interface HookHttpClientMBean
+{
+	int getConnectionsInPool();
+
+	int getLeasedConnections();
+
+	int getIdleConnections();
+
+	int getMaxConnections();
+
+	int getWaitingRequests();
+
+	long getPoolWaitTime();
+
+	long getPoolTimeoutCount();
+
+	int getActiveRequests();
+
+	int getPeakActiveRequests();
+
+	long getRequestCount();
+
+	long getFailureCount();
+}
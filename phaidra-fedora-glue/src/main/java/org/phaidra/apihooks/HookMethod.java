@@ -0,0 +1,90 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+/**
+ * The configuration of one enabled hook method, read once from fedora.fcfg:
+ * where the hook is called and which optional features are switched on.
+ */
+public class HookMethod
+{
+	private final String name;
+
+	private final HookTransport transport;
+
+	private final boolean cache;
+
+	private final boolean batch;
+
+	private final boolean async;
+
+	private final boolean failOpen;
+
+	private final HookFilter filter;
+
+	/**
+	 * @param name The method name
+	 * @param transport The transport the method is routed to
+	 * @param cache <code>&lt;method&gt;.cache</code>
+	 * @param batch <code>&lt;method&gt;.batch</code>
+	 * @param async <code>&lt;method&gt;.async</code>
+	 * @param failOpen TRUE if the failure policy is "failopen"
+	 * @param filter The calls the method is subscribed to, null for all
+	 */
+	public HookMethod(String name, HookTransport transport, boolean cache, boolean batch, 
+			boolean async, boolean failOpen, HookFilter filter)
+	{
+		this.name = name;
+		this.transport = transport;
+		this.cache = cache;
+		this.batch = batch;
+		this.async = async;
+		this.failOpen = failOpen;
+		this.filter = filter;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public HookTransport getTransport()
+	{
+		return transport;
+	}
+
+	public boolean isCache()
+	{
+		return cache;
+	}
+
+	public boolean isBatch()
+	{
+		return batch;
+	}
+
+	public boolean isAsync()
+	{
+		return async;
+	}
+
+	public boolean isFailOpen()
+	{
+		return failOpen;
+	}
+
+	/**
+	 * @return boolean TRUE if the method is subscribed to the call, see {@link HookFilter}
+	 */
+	public boolean isSubscribed(String pid, String datastream, String mimeType)
+	{
+		return filter==null || filter.matches(pid, datastream, mimeType);
+	}
+
+	public String toString()
+	{
+		return name+" -> "+transport+(cache ? ", cache" : "")+(batch ? ", batch" : "")+
+			   (async ? ", async" : "")+(failOpen ? ", failopen" : "")+(filter!=null ? ", "+filter : "");
+	}
+}
@@ -0,0 +1,408 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Latency histograms and verdict counts per hook method.
+ *
+ * Each call of {@link APIHooksImpl#runHook} is timed in phases:
+ * <ul>
+ * <li><code>roundtrip</code>: the call of the hook, without parsing its answer</li>
+ * <li><code>processResults</code>: parsing the answer of the hook</li>
+ * <li><code>commands</code>: executing the commands of the verdict</li>
+ * <li><code>total</code>: everything, including the verdict cache</li>
+ * </ul>
+ * Batches are timed as method "_batch". The histograms and counters are
+ * registered as MBeans under <code>org.phaidra.apihooks</code> when first
+ * used, and can be served in the Prometheus text format. So are the
+ * circuit breakers added with {@link #addCircuitBreaker}, the queue of the
+ * post-commit executor, see {@link #setPostCommitExecutor}, and the
+ * connection pool of the REST hooks, see {@link #setHttpClient}.
+ */
+public class HookMetrics
+{
+	protected static Log log = LogFactory.getLog(HookMetrics.class);
+
+	public static final String ROUNDTRIP = "roundtrip";
+
+	public static final String PROCESS_RESULTS = "processResults";
+
+	public static final String COMMANDS = "commands";
+
+	public static final String TOTAL = "total";
+
+	private static final String DOMAIN = "org.phaidra.apihooks";
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private final ConcurrentMap<String, VerdictCounter> verdicts = new ConcurrentHashMap<String, VerdictCounter>();
+
+	private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	/** null if post-commit hooks run synchronously */
+	private volatile KeyedSerialExecutor postCommitExecutor;
+
+	/** null if there are no REST hooks */
+	private volatile HookHttpClient httpClient;
+
+	/** null if the metrics are not registered with JMX */
+	private final MBeanServer mbeanServer;
+
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	private HttpServer httpServer;
+
+	/**
+	 * @param jmx TRUE to register the histograms and counters with the platform MBean server
+	 */
+	public HookMetrics(boolean jmx)
+	{
+		this.mbeanServer = jmx ? ManagementFactory.getPlatformMBeanServer() : null;
+	}
+
+	/**
+	 * Records the duration of a phase of a hook call.
+	 *
+	 * @param method The hook method, "_batch" for batches
+	 * @param phase One of the phases above
+	 * @param nanos The duration in ns
+	 */
+	public void record(String method, String phase, long nanos)
+	{
+		String key = method+" "+phase;
+		LatencyHistogram histogram = histograms.get(key);
+		if(histogram==null)
+		{
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(key, created);
+			if(histogram==null)
+			{
+				histogram = created;
+				register(created, "type=HookLatency,method="+method+",phase="+phase);
+			}
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * Records the phases of a hook call that was answered (or failed open).
+	 *
+	 * @param callTime Time in ns of the call including parsing the answer
+	 * @param commandTime Time in ns of executing the commands
+	 */
+	public void recordCall(String method, HookResult result, long callTime, long commandTime)
+	{
+		if(result.isFailedOpen())
+		{
+			count(method, VerdictCounter.Outcome.FAILED_OPEN);
+			return;
+		}
+		record(method, ROUNDTRIP, callTime-result.getParseTime());
+		record(method, PROCESS_RESULTS, result.getParseTime());
+		record(method, COMMANDS, commandTime);
+		count(method, result.isOK() ? VerdictCounter.Outcome.OK : VerdictCounter.Outcome.REJECTED);
+	}
+
+	public void count(String method, VerdictCounter.Outcome outcome)
+	{
+		VerdictCounter counter = verdicts.get(method);
+		if(counter==null)
+		{
+			VerdictCounter created = new VerdictCounter();
+			counter = verdicts.putIfAbsent(method, created);
+			if(counter==null)
+			{
+				counter = created;
+				register(created, "type=HookVerdicts,method="+method);
+			}
+		}
+		counter.count(outcome);
+	}
+
+	/**
+	 * Exposes the state and the transition counts of a circuit breaker.
+	 *
+	 * @param method The hook method of the breaker, "_batch" for batches
+	 * @param breaker The breaker
+	 */
+	public void addCircuitBreaker(String method, CircuitBreaker breaker)
+	{
+		if(breakers.putIfAbsent(method, breaker)==null)
+		{
+			register(breaker, "type=HookCircuitBreaker,method="+method);
+		}
+	}
+
+	/**
+	 * Exposes the queue depth, lag and rejections of the post-commit executor.
+	 *
+	 * @param executor The executor of the asynchronous post-commit hooks
+	 */
+	public void setPostCommitExecutor(KeyedSerialExecutor executor)
+	{
+		postCommitExecutor = executor;
+		register(executor, "type=HookPostCommitQueue");
+	}
+
+	/**
+	 * Exposes the leased, idle and waiting counts of the REST connection pool.
+	 *
+	 * @param client The client shared by the REST transports
+	 */
+	public void setHttpClient(HookHttpClient client)
+	{
+		httpClient = client;
+		register(client, "type=HookHttpPool");
+	}
+
+	/**
+	 * Spreads the time spent parsing a batch answer over its results.
+	 */
+	static void shareParseTime(List<HookResult> results, long nanos)
+	{
+		for(HookResult result : results)
+		{
+			result.setParseTime(nanos/results.size());
+		}
+	}
+
+	private void register(Object mbean, String properties)
+	{
+		if(mbeanServer==null)
+		{
+			return;
+		}
+		try
+		{
+			ObjectName name = new ObjectName(DOMAIN+":"+properties);
+			if(mbeanServer.isRegistered(name))
+			{
+				// left over from a previous instance of the module
+				mbeanServer.unregisterMBean(name);
+			}
+			mbeanServer.registerMBean(mbean, name);
+			synchronized(registered)
+			{
+				registered.add(name);
+			}
+		}
+		catch(Exception ex)
+		{
+			log.warn("cannot register hook metrics "+properties+" with JMX: "+ex.getMessage());
+		}
+	}
+
+	/**
+	 * @return String All histograms and counters in the Prometheus text format
+	 */
+	public String toPrometheus()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP phaidra_hook_duration_seconds Duration of the phases of hook calls\n");
+		sb.append("# TYPE phaidra_hook_duration_seconds histogram\n");
+		for(Map.Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(histograms).entrySet())
+		{
+			int space = e.getKey().indexOf(' ');
+			e.getValue().appendPrometheus(sb, "phaidra_hook_duration_seconds", 
+					"method=\""+e.getKey().substring(0, space)+"\",phase=\""+e.getKey().substring(space+1)+"\"");
+		}
+		sb.append("# HELP phaidra_hook_verdicts_total Outcomes of hook calls\n");
+		sb.append("# TYPE phaidra_hook_verdicts_total counter\n");
+		for(Map.Entry<String, VerdictCounter> e : new TreeMap<String, VerdictCounter>(verdicts).entrySet())
+		{
+			for(VerdictCounter.Outcome outcome : VerdictCounter.Outcome.values())
+			{
+				sb.append("phaidra_hook_verdicts_total{method=\"").append(e.getKey()).append("\",outcome=\"")
+				  .append(outcome.name().toLowerCase()).append("\"} ").append(e.getValue().get(outcome)).append('\n');
+			}
+		}
+		appendCircuitBreakers(sb);
+		appendPostCommitQueue(sb);
+		appendHttpPool(sb);
+		return sb.toString();
+	}
+
+	private void appendHttpPool(StringBuilder sb)
+	{
+		HookHttpClient client = httpClient;
+		if(client==null)
+		{
+			return;
+		}
+		sb.append("# HELP phaidra_hook_http_pool_connections Pooled connections to the REST hooks\n");
+		sb.append("# TYPE phaidra_hook_http_pool_connections gauge\n");
+		sb.append("phaidra_hook_http_pool_connections{state=\"leased\"} ").append(client.getLeasedConnections()).append('\n');
+		sb.append("phaidra_hook_http_pool_connections{state=\"idle\"} ").append(client.getIdleConnections()).append('\n');
+		sb.append("# HELP phaidra_hook_http_pool_max_connections Maximum number of pooled connections\n");
+		sb.append("# TYPE phaidra_hook_http_pool_max_connections gauge\n");
+		sb.append("phaidra_hook_http_pool_max_connections ").append(client.getMaxConnections()).append('\n');
+		sb.append("# HELP phaidra_hook_http_pool_waiting Requests waiting for a free connection\n");
+		sb.append("# TYPE phaidra_hook_http_pool_waiting gauge\n");
+		sb.append("phaidra_hook_http_pool_waiting ").append(client.getWaitingRequests()).append('\n');
+		sb.append("# HELP phaidra_hook_http_pool_wait_seconds_total Time requests waited for a free connection\n");
+		sb.append("# TYPE phaidra_hook_http_pool_wait_seconds_total counter\n");
+		sb.append("phaidra_hook_http_pool_wait_seconds_total ").append(client.getPoolWaitTime()/1000.0).append('\n');
+		sb.append("# HELP phaidra_hook_http_requests_total Requests to the REST hooks by outcome\n");
+		sb.append("# TYPE phaidra_hook_http_requests_total counter\n");
+		sb.append("phaidra_hook_http_requests_total{outcome=\"all\"} ").append(client.getRequestCount()).append('\n');
+		sb.append("phaidra_hook_http_requests_total{outcome=\"failed\"} ").append(client.getFailureCount()).append('\n');
+		sb.append("phaidra_hook_http_requests_total{outcome=\"pool_timeout\"} ").append(client.getPoolTimeoutCount()).append('\n');
+	}
+
+	private void appendPostCommitQueue(StringBuilder sb)
+	{
+		KeyedSerialExecutor executor = postCommitExecutor;
+		if(executor==null)
+		{
+			return;
+		}
+		sb.append("# HELP phaidra_hook_postcommit_queue_depth Post-commit hooks waiting to be delivered\n");
+		sb.append("# TYPE phaidra_hook_postcommit_queue_depth gauge\n");
+		sb.append("phaidra_hook_postcommit_queue_depth ").append(executor.getQueueDepth()).append('\n');
+		sb.append("# HELP phaidra_hook_postcommit_tasks_total Post-commit delivery tasks by outcome of the submission\n");
+		sb.append("# TYPE phaidra_hook_postcommit_tasks_total counter\n");
+		sb.append("phaidra_hook_postcommit_tasks_total{outcome=\"submitted\"} ").append(executor.getSubmittedCount()).append('\n');
+		sb.append("phaidra_hook_postcommit_tasks_total{outcome=\"completed\"} ").append(executor.getCompletedCount()).append('\n');
+		sb.append("phaidra_hook_postcommit_tasks_total{outcome=\"blocked\"} ").append(executor.getBlockedCount()).append('\n');
+		sb.append("phaidra_hook_postcommit_tasks_total{outcome=\"rejected\"} ").append(executor.getRejectedCount()).append('\n');
+		sb.append("# HELP phaidra_hook_postcommit_lag_seconds Time between queueing and starting a post-commit task\n");
+		sb.append("# TYPE phaidra_hook_postcommit_lag_seconds gauge\n");
+		sb.append("phaidra_hook_postcommit_lag_seconds{stat=\"avg\"} ").append(executor.getAverageLag()/1000.0).append('\n');
+		sb.append("phaidra_hook_postcommit_lag_seconds{stat=\"max\"} ").append(executor.getMaxLag()/1000.0).append('\n');
+	}
+
+	private void appendCircuitBreakers(StringBuilder sb)
+	{
+		if(breakers.isEmpty())
+		{
+			return;
+		}
+		Map<String, CircuitBreaker> sorted = new TreeMap<String, CircuitBreaker>(breakers);
+		sb.append("# HELP phaidra_hook_circuit_breaker_state Current state of the circuit breakers\n");
+		sb.append("# TYPE phaidra_hook_circuit_breaker_state gauge\n");
+		for(Map.Entry<String, CircuitBreaker> e : sorted.entrySet())
+		{
+			CircuitBreaker.State current = e.getValue().getState();
+			for(CircuitBreaker.State state : CircuitBreaker.State.values())
+			{
+				sb.append("phaidra_hook_circuit_breaker_state{method=\"").append(e.getKey()).append("\",state=\"")
+				  .append(state.name().toLowerCase()).append("\"} ").append(state==current ? 1 : 0).append('\n');
+			}
+		}
+		sb.append("# HELP phaidra_hook_circuit_breaker_transitions_total State changes of the circuit breakers\n");
+		sb.append("# TYPE phaidra_hook_circuit_breaker_transitions_total counter\n");
+		for(Map.Entry<String, CircuitBreaker> e : sorted.entrySet())
+		{
+			CircuitBreaker breaker = e.getValue();
+			String labels = "{method=\""+e.getKey()+"\",state=\"";
+			sb.append("phaidra_hook_circuit_breaker_transitions_total").append(labels).append("open\"} ")
+			  .append(breaker.getOpenedCount()).append('\n');
+			sb.append("phaidra_hook_circuit_breaker_transitions_total").append(labels).append("half_open\"} ")
+			  .append(breaker.getHalfOpenedCount()).append('\n');
+			sb.append("phaidra_hook_circuit_breaker_transitions_total").append(labels).append("closed\"} ")
+			  .append(breaker.getClosedCount()).append('\n');
+		}
+		sb.append("# HELP phaidra_hook_circuit_breaker_rejected_total Calls rejected by open circuit breakers\n");
+		sb.append("# TYPE phaidra_hook_circuit_breaker_rejected_total counter\n");
+		for(Map.Entry<String, CircuitBreaker> e : sorted.entrySet())
+		{
+			sb.append("phaidra_hook_circuit_breaker_rejected_total{method=\"").append(e.getKey()).append("\"} ")
+			  .append(e.getValue().getRejectedCount()).append('\n');
+		}
+	}
+
+	/**
+	 * Serves {@link #toPrometheus()} at <code>/metrics</code>.
+	 *
+	 * @param bindAddress The address to listen on, null for the loopback address
+	 * @param port The port to listen on, 0 for any free port
+	 * @return InetSocketAddress The address actually bound
+	 * @throws IOException If the address cannot be bound
+	 */
+	public synchronized InetSocketAddress startHttpServer(String bindAddress, int port) throws IOException
+	{
+		// InetAddress.getByName(null) is the loopback address
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName(bindAddress), port), 0);
+		httpServer.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				byte[] body = toPrometheus().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		httpServer.start();
+		return httpServer.getAddress();
+	}
+
+	/**
+	 * Stops the HTTP server and unregisters the MBeans.
+	 */
+	public synchronized void close()
+	{
+		if(httpServer!=null)
+		{
+			httpServer.stop(0);
+			httpServer = null;
+		}
+		if(mbeanServer==null)
+		{
+			return;
+		}
+		synchronized(registered)
+		{
+			for(ObjectName name : registered)
+			{
+				try
+				{
+					mbeanServer.unregisterMBean(name);
+				}
+				catch(Exception ex)
+				{
+					log.debug("cannot unregister "+name+": "+ex.getMessage());
+				}
+			}
+			registered.clear();
+		}
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, VerdictCounter> e : new TreeMap<String, VerdictCounter>(verdicts).entrySet())
+		{
+			sb.append("\n  ").append(e.getKey()).append(": ").append(e.getValue());
+		}
+		for(Map.Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(histograms).entrySet())
+		{
+			sb.append("\n  ").append(e.getKey()).append(": ").append(e.getValue());
+		}
+		return sb.toString();
+	}
+}
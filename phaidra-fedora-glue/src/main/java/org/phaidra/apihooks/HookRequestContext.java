@@ -0,0 +1,97 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import org.fcrepo.server.Context;
+
+/**
+ * The hooked API-M calls the current thread is in, innermost first.
+ *
+ * {@link APIHooksAspect} enters a context when a hooked
+ * <code>DefaultManagement</code> method starts and leaves it when the method
+ * returns. The advice on the <code>SimpleDOWriter</code> methods looks up
+ * the call they belong to with one ThreadLocal read, where 
+ * <code>cflow()</code> kept a counter stack per pointcut that was updated on
+ * every call.
+ */
+public final class HookRequestContext
+{
+	private static final ThreadLocal<HookRequestContext> current = new ThreadLocal<HookRequestContext>();
+
+	private final String method;
+
+	private final Object[] args;
+
+	private final HookRequestContext outer;
+
+	private HookRequestContext(String method, Object[] args, HookRequestContext outer)
+	{
+		this.method = method;
+		this.args = args;
+		this.outer = outer;
+	}
+
+	/**
+	 * @param method The name of the <code>DefaultManagement</code> method
+	 * @param args Its arguments
+	 */
+	public static void enter(String method, Object[] args)
+	{
+		current.set(new HookRequestContext(method, args, current.get()));
+	}
+
+	/**
+	 * Leaves the innermost context.
+	 */
+	public static void exit()
+	{
+		HookRequestContext c = current.get();
+		if(c!=null && c.outer!=null)
+		{
+			current.set(c.outer);
+		}
+		else
+		{
+			current.remove();
+		}
+	}
+
+	/**
+	 * @param method The name of the <code>DefaultManagement</code> method
+	 * @return HookRequestContext The innermost call of the method on this thread, null if there is none
+	 */
+	public static HookRequestContext find(String method)
+	{
+		for(HookRequestContext c = current.get();c!=null;c = c.outer)
+		{
+			if(c.method.equals(method))
+			{
+				return c;
+			}
+		}
+		return null;
+	}
+
+	/** @return Context The first argument of every hooked method */
+	public Context getContext()
+	{
+		return (Context)args[0];
+	}
+
+	/** @return String The second argument, the PID (the subject for purgeRelationship); null for ingest */
+	public String getPid()
+	{
+		return args[1] instanceof String ? (String)args[1] : null;
+	}
+
+	public Object getArg(int index)
+	{
+		return args[index];
+	}
+
+	public String toString()
+	{
+		return method+"("+getPid()+")";
+	}
+}
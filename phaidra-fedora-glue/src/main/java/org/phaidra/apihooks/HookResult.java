@@ -0,0 +1,97 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parsed answer of a hook: the verdict, additional info and the commands
+ * to execute on the object if the verdict is "OK".
+ */
+public class HookResult
+{
+	private final String verdict;
+
+	private final String additionalInfo;
+
+	private final List<HookCommand> commands = new ArrayList<HookCommand>();
+
+	private boolean failedOpen;
+
+	private long parseTime;
+
+	public HookResult(String verdict, String additionalInfo)
+	{
+		this.verdict = verdict;
+		this.additionalInfo = additionalInfo==null ? "" : additionalInfo;
+	}
+
+	/**
+	 * The result used in place of an answer when the hook could not be
+	 * called and its failure policy is fail-open.
+	 *
+	 * @param reason Why the hook was not called, sent as additional info
+	 */
+	public static HookResult failOpen(String reason)
+	{
+		HookResult result = new HookResult("OK", "hook not called: "+reason);
+		result.failedOpen = true;
+		return result;
+	}
+
+	/** @return boolean TRUE if the hook was not called, see {@link #failOpen(String)} */
+	public boolean isFailedOpen()
+	{
+		return failedOpen;
+	}
+
+	/** @return long Time in ns spent parsing the answer of the hook, see {@link HookMetrics} */
+	public long getParseTime()
+	{
+		return parseTime;
+	}
+
+	void setParseTime(long parseTime)
+	{
+		this.parseTime = parseTime;
+	}
+
+	public String getVerdict()
+	{
+		return verdict;
+	}
+
+	public String getAdditionalInfo()
+	{
+		return additionalInfo;
+	}
+
+	/** @return boolean TRUE if the hook allows us to proceed */
+	public boolean isOK()
+	{
+		return verdict.equalsIgnoreCase("OK");
+	}
+
+	public void addCommand(HookCommand command)
+	{
+		commands.add(command);
+	}
+
+	/** @return List The commands in the order they have to be executed */
+	public List<HookCommand> getCommands()
+	{
+		return Collections.unmodifiableList(commands);
+	}
+
+	/**
+	 * @return String The verdict string as returned by APIHooks.runHook,
+	 *         i.e. "verdict: additionalInfo"
+	 */
+	public String toString()
+	{
+		return verdict+": "+additionalInfo;
+	}
+}
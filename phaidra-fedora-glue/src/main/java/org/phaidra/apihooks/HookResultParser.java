@@ -0,0 +1,201 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming parser for the hook result XML.
+ *
+ * The verdict and the commands are read in one pass, without building a
+ * tree. Commands are returned in document order. Elements are matched by
+ * local name, so the prefix used by the hook and the URI it is bound to do
+ * not matter. Only if a namespace is configured, the URI has to match as
+ * well.
+ */
+public class HookResultParser
+{
+	/** Configured once; creating readers from it is thread-safe */
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	static
+	{
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/** null if any namespace is accepted */
+	private final String namespace;
+
+	/**
+	 * @param namespace Namespace URI of the hook elements, null to accept any
+	 */
+	public HookResultParser(String namespace)
+	{
+		this.namespace = namespace;
+	}
+
+	/**
+	 * Parses the result of a single hook call.
+	 *
+	 * @param hookResultXML The XML from the hook call
+	 * @return HookResult The verdict and the commands
+	 * @throws APIHooksException If parsing failed
+	 */
+	public HookResult parse(String hookResultXML) throws APIHooksException
+	{
+		long start = System.nanoTime();
+		XMLStreamReader r = open(hookResultXML);
+		try
+		{
+			HookResult result = readResult(r, false);
+			result.setParseTime(System.nanoTime()-start);
+			return result;
+		}
+		catch(XMLStreamException ex)
+		{
+			throw new APIHooksException("Error parsing hook XML: "+ex.getMessage(), ex);
+		}
+		finally
+		{
+			close(r);
+		}
+	}
+
+	/**
+	 * Parses the result of a batched hook call, one <code>result</code> element per event.
+	 *
+	 * @param hookResultXML The XML from the hook call
+	 * @return List The verdicts and the commands, in document order
+	 * @throws APIHooksException If parsing failed
+	 */
+	public List<HookResult> parseBatch(String hookResultXML) throws APIHooksException
+	{
+		long start = System.nanoTime();
+		XMLStreamReader r = open(hookResultXML);
+		try
+		{
+			List<HookResult> results = new ArrayList<HookResult>();
+			while(r.hasNext())
+			{
+				if(r.next()==XMLStreamConstants.START_ELEMENT && isHookElement(r, "result"))
+				{
+					results.add(readResult(r, true));
+				}
+			}
+			HookMetrics.shareParseTime(results, System.nanoTime()-start);
+			return results;
+		}
+		catch(XMLStreamException ex)
+		{
+			throw new APIHooksException("Error parsing hook XML: "+ex.getMessage(), ex);
+		}
+		finally
+		{
+			close(r);
+		}
+	}
+
+	/**
+	 * Reads one result: up to the end of the current element if
+	 * <code>nested</code>, otherwise up to the end of the document.
+	 */
+	private HookResult readResult(XMLStreamReader r, boolean nested) throws XMLStreamException, APIHooksException
+	{
+		String verdict = null;
+		String additionalInfo = null;
+		List<HookCommand> commands = new ArrayList<HookCommand>();
+		int depth = 0;
+		while(r.hasNext())
+		{
+			int event = r.next();
+			if(event==XMLStreamConstants.START_ELEMENT)
+			{
+				// getElementText() consumes the element including its end tag
+				if(verdict==null && isHookElement(r, "verdict"))
+				{
+					additionalInfo = r.getAttributeValue(null, "additionalInfo");
+					verdict = r.getElementText();
+					continue;
+				}
+				if(isHookElement(r, "replaceIntoDatastream"))
+				{
+					String datastream = attribute(r, "datastream");
+					commands.add(HookCommand.replaceIntoDatastream(datastream, r.getElementText()));
+					continue;
+				}
+				if(isHookElement(r, "purgeDatastream"))
+				{
+					commands.add(HookCommand.purgeDatastream(attribute(r, "datastream")));
+				}
+				depth++;
+			}
+			else if(event==XMLStreamConstants.END_ELEMENT)
+			{
+				if(nested && depth==0)
+				{
+					break;
+				}
+				depth--;
+			}
+		}
+		
+		if(verdict==null)
+		{
+			throw new APIHooksException("Error processing hook XML: no 'verdict' node found");
+		}
+		HookResult result = new HookResult(verdict, additionalInfo);
+		for(HookCommand command : commands)
+		{
+			result.addCommand(command);
+		}
+		return result;
+	}
+
+	private boolean isHookElement(XMLStreamReader r, String localName)
+	{
+		return localName.equals(r.getLocalName()) && 
+			   (namespace==null || namespace.equals(r.getNamespaceURI()));
+	}
+
+	/** @return String The attribute value, "" if missing */
+	private static String attribute(XMLStreamReader r, String name)
+	{
+		String value = r.getAttributeValue(null, name);
+		return value==null ? "" : value;
+	}
+
+	private static XMLStreamReader open(String hookResultXML) throws APIHooksException
+	{
+		try
+		{
+			return factory.createXMLStreamReader(new StringReader(hookResultXML));
+		}
+		catch(XMLStreamException ex)
+		{
+			throw new APIHooksException("Error parsing hook XML: "+ex.getMessage(), ex);
+		}
+	}
+
+	private static void close(XMLStreamReader r)
+	{
+		try
+		{
+			r.close();
+		}
+		catch(XMLStreamException ex)
+		{
+			// nothing to release
+		}
+	}
+}
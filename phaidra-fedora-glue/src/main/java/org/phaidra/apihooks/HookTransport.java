@@ -0,0 +1,42 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.List;
+
+import org.fcrepo.server.Context;
+
+/**
+ * The way a hook is called, e.g. REST or SOAP to a particular endpoint.
+ * Implementations are shared by all methods routed to them and must be 
+ * thread-safe.
+ */
+public interface HookTransport
+{
+	/**
+	 * Calls the hook.
+	 *
+	 * @param method The name of the method that calls the hook
+	 * @param context The calling context to get user information from
+	 * @param pid The PID that is being accessed
+	 * @param params Method parameters, depend on the method called
+	 * @return HookResult The verdict and the commands
+	 * @throws APIHooksException If the remote call went wrong
+	 */
+	HookResult invokeHook(String method, Context context, String pid, Object[] params) throws APIHooksException;
+	
+	/**
+	 * @return boolean TRUE if {@link #invokeBatchHook} is supported
+	 */
+	boolean supportsBatch();
+	
+	/**
+	 * Calls the hook once for several events.
+	 *
+	 * @param events The events, all for the same PID
+	 * @return List The results, in the order of the events
+	 * @throws APIHooksException If the remote call went wrong
+	 */
+	List<HookResult> invokeBatchHook(List<HookEvent> events) throws APIHooksException;
+}
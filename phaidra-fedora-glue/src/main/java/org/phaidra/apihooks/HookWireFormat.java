@@ -0,0 +1,273 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary hook protocol, an alternative to form parameters and result
+ * XML. Strings are sent as raw UTF-8, so datastream content is neither
+ * URL-encoded nor XML-escaped, and reading a verdict needs no XML parser.
+ *
+ * All numbers are big-endian 32 bit integers, a string is its length in
+ * bytes (-1 for null) followed by the UTF-8 bytes.
+ *
+ * <pre>
+ * request  := version(=1) username pid eventCount event* attrCount string*
+ * event    := method paramCount param*
+ * param    := string
+ *           | -2 digest               (content the hook already has, see ContentDigestCache)
+ * response := version(=1) resultCount result*
+ * result   := verdict additionalInfo commandCount command*
+ * command  := 1 datastream content    (replaceIntoDatastream)
+ *           | 2 datastream            (purgeDatastream)
+ * </pre>
+ *
+ * A single hook call is a request with one event; the response has one
+ * result per event, in the same order.
+ */
+public class HookWireFormat
+{
+	public static final String CONTENT_TYPE = "application/x-phaidra-hook";
+
+	public static final int VERSION = 1;
+
+	/** Length that marks a parameter sent as the digest of its content */
+	public static final int DIGEST = -2;
+
+	private static final int REPLACE_INTO_DATASTREAM = 1;
+
+	private static final int PURGE_DATASTREAM = 2;
+
+	/**
+	 * Writes a string in the format described above.
+	 */
+	public static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if(s==null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Writes a response, used by hook servers.
+	 *
+	 * @param out The stream to write to
+	 * @param results The results, one per event of the request
+	 */
+	public static void writeResults(DataOutputStream out, List<HookResult> results) throws IOException
+	{
+		out.writeInt(VERSION);
+		out.writeInt(results.size());
+		for(HookResult result : results)
+		{
+			writeString(out, result.getVerdict());
+			writeString(out, result.getAdditionalInfo());
+			out.writeInt(result.getCommands().size());
+			for(HookCommand command : result.getCommands())
+			{
+				if(command.getType()==HookCommand.Type.REPLACE_INTO_DATASTREAM)
+				{
+					out.writeInt(REPLACE_INTO_DATASTREAM);
+					writeString(out, command.getDatastream());
+					writeString(out, command.getContent());
+				}
+				else
+				{
+					out.writeInt(PURGE_DATASTREAM);
+					writeString(out, command.getDatastream());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a response.
+	 *
+	 * @param buf The response body
+	 * @param len The length of the response body
+	 * @return List The results, in the order of the events
+	 * @throws APIHooksException If the response is malformed
+	 */
+	public static List<HookResult> readResults(byte[] buf, int len) throws APIHooksException
+	{
+		long start = System.nanoTime();
+		Reader r = new Reader(buf, len);
+		try
+		{
+			r.checkVersion();
+			int count = r.readCount();
+			List<HookResult> results = new ArrayList<HookResult>(count);
+			for(int i=0;i<count;i++)
+			{
+				HookResult result = new HookResult(r.readString(), r.readString());
+				int commands = r.readCount();
+				for(int j=0;j<commands;j++)
+				{
+					int type = r.readInt();
+					if(type==REPLACE_INTO_DATASTREAM)
+					{
+						String datastream = r.readString("datastream");
+						result.addCommand(HookCommand.replaceIntoDatastream(datastream, r.readString("content")));
+					}
+					else if(type==PURGE_DATASTREAM)
+					{
+						result.addCommand(HookCommand.purgeDatastream(r.readString("datastream")));
+					}
+					else
+					{
+						throw new APIHooksException("Error parsing hook response: unknown command type "+type);
+					}
+				}
+				if(result.getVerdict()==null)
+				{
+					throw new APIHooksException("Error processing hook response: no verdict");
+				}
+				results.add(result);
+			}
+			HookMetrics.shareParseTime(results, System.nanoTime()-start);
+			return results;
+		}
+		catch(UnsupportedEncodingException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Reads a request, used by hook servers. The events have no context,
+	 * the subject attributes are skipped. Content sent as a digest is
+	 * returned as {@link HookContent.Digest}.
+	 *
+	 * @param buf The request body
+	 * @param len The length of the request body
+	 * @return List The events
+	 * @throws APIHooksException If the request is malformed
+	 */
+	public static List<HookEvent> readRequest(byte[] buf, int len) throws APIHooksException
+	{
+		Reader r = new Reader(buf, len);
+		try
+		{
+			r.checkVersion();
+			r.readString();
+			String pid = r.readString();
+			int count = r.readCount();
+			List<HookEvent> events = new ArrayList<HookEvent>(count);
+			for(int i=0;i<count;i++)
+			{
+				String method = r.readString();
+				Object[] params = new Object[r.readCount()];
+				for(int j=0;j<params.length;j++)
+				{
+					params[j] = r.readParam();
+				}
+				events.add(new HookEvent(method, null, pid, params));
+			}
+			return events;
+		}
+		catch(UnsupportedEncodingException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Reads straight from the buffer; strings are decoded without copying the bytes first.
+	 */
+	private static class Reader
+	{
+		private final byte[] buf;
+
+		private final int len;
+
+		private int pos;
+
+		Reader(byte[] buf, int len)
+		{
+			this.buf = buf;
+			this.len = len;
+		}
+
+		int readInt() throws APIHooksException
+		{
+			if(pos+4>len)
+			{
+				throw new APIHooksException("Error parsing hook message: truncated at byte "+pos);
+			}
+			int i = ((buf[pos] & 0xFF) << 24) | ((buf[pos+1] & 0xFF) << 16) | 
+					((buf[pos+2] & 0xFF) << 8) | (buf[pos+3] & 0xFF);
+			pos += 4;
+			return i;
+		}
+
+		/** @return int A count that must fit into the rest of the message */
+		int readCount() throws APIHooksException
+		{
+			int n = readInt();
+			if(n<0 || n>len-pos)
+			{
+				throw new APIHooksException("Error parsing hook message: invalid count "+n+" at byte "+(pos-4));
+			}
+			return n;
+		}
+
+		String readString() throws APIHooksException, UnsupportedEncodingException
+		{
+			int n = readInt();
+			if(n==-1)
+			{
+				return null;
+			}
+			if(n<0 || n>len-pos)
+			{
+				throw new APIHooksException("Error parsing hook message: invalid string length "+n+" at byte "+(pos-4));
+			}
+			String s = new String(buf, pos, n, "UTF-8");
+			pos += n;
+			return s;
+		}
+
+		/** @return String The string, which must not be null */
+		String readString(String what) throws APIHooksException, UnsupportedEncodingException
+		{
+			int start = pos;
+			String s = readString();
+			if(s==null)
+			{
+				throw new APIHooksException("Error parsing hook message: "+what+" is null at byte "+start);
+			}
+			return s;
+		}
+
+		Object readParam() throws APIHooksException, UnsupportedEncodingException
+		{
+			int start = pos;
+			if(readInt()==DIGEST)
+			{
+				return new HookContent.Digest(readString());
+			}
+			pos = start;
+			return readString();
+		}
+
+		void checkVersion() throws APIHooksException
+		{
+			int version = readInt();
+			if(version!=VERSION)
+			{
+				throw new APIHooksException("Error parsing hook message: unsupported version "+version);
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor that runs tasks with the same key one after another, in the order
+ * they were submitted, while tasks with different keys run in parallel.
+ *
+ * Keys are mapped to a fixed number of stripes, each one a single thread with
+ * a bounded queue. If the queue of a stripe is full the submitting thread
+ * waits for room, up to a timeout chosen by the caller. A task is never run
+ * by the submitting thread, it would overtake the queued tasks of its key.
+ */
+public class KeyedSerialExecutor implements KeyedSerialExecutorMBean
+{
+	private final ThreadPoolExecutor[] stripes;
+
+	private final AtomicLong submitted = new AtomicLong();
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong blocked = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong totalLag = new AtomicLong();
+
+	private final AtomicLong maxLag = new AtomicLong();
+
+	/**
+	 * @param name Thread name prefix
+	 * @param threads Number of stripes (threads)
+	 * @param queueSize Queue capacity per stripe
+	 */
+	public KeyedSerialExecutor(final String name, int threads, int queueSize)
+	{
+		stripes = new ThreadPoolExecutor[threads];
+		for(int i=0;i<threads;i++)
+		{
+			final String threadName = name+"-"+i;
+			stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+						public Thread newThread(Runnable r)
+						{
+							Thread t = new Thread(r, threadName);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			stripes[i].prestartCoreThread();
+		}
+	}
+
+	/**
+	 * Runs the task after all tasks previously submitted with the same key.
+	 *
+	 * @param key The ordering key, e.g. the PID
+	 * @param task The task to run
+	 * @param timeout Maximum time in ms to wait for room in a full queue, negative to wait as long as it takes
+	 * @return boolean TRUE if the task was queued, FALSE if the queue stayed full or the executor is shut down
+	 * @throws InterruptedException If interrupted while waiting for room
+	 */
+	public boolean execute(String key, final Runnable task, long timeout) throws InterruptedException
+	{
+		submitted.incrementAndGet();
+		final long submittedAt = System.currentTimeMillis();
+		Runnable timed = new Runnable() {
+			public void run()
+			{
+				long lag = System.currentTimeMillis()-submittedAt;
+				totalLag.addAndGet(lag);
+				long max = maxLag.get();
+				while(lag>max && !maxLag.compareAndSet(max, lag))
+				{
+					max = maxLag.get();
+				}
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					completed.incrementAndGet();
+				}
+			}
+		};
+		ThreadPoolExecutor stripe = stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+		try
+		{
+			stripe.execute(timed);
+			return true;
+		}
+		catch(RejectedExecutionException ex)
+		{
+			// queue full or shut down
+		}
+		boolean queued = false;
+		if(!stripe.isShutdown())
+		{
+			// the stripe thread is always running, it takes the task from the queue like any other
+			blocked.incrementAndGet();
+			BlockingQueue<Runnable> queue = stripe.getQueue();
+			if(timeout<0)
+			{
+				queue.put(timed);
+				queued = true;
+			}
+			else
+			{
+				queued = queue.offer(timed, timeout, TimeUnit.MILLISECONDS);
+			}
+			if(queued && stripe.isShutdown() && queue.remove(timed))
+			{
+				// shut down while waiting, the thread may already be gone
+				queued = false;
+			}
+		}
+		if(!queued)
+		{
+			submitted.decrementAndGet();
+			rejected.incrementAndGet();
+		}
+		return queued;
+	}
+
+	/**
+	 * Stops accepting tasks and waits for the queued ones to finish.
+	 *
+	 * @param timeout Maximum time to wait in ms
+	 * @return boolean TRUE if all queued tasks finished in time
+	 */
+	public boolean shutdown(long timeout) throws InterruptedException
+	{
+		for(ThreadPoolExecutor stripe : stripes)
+		{
+			stripe.shutdown();
+		}
+		long end = System.currentTimeMillis()+timeout;
+		for(ThreadPoolExecutor stripe : stripes)
+		{
+			if(!stripe.awaitTermination(Math.max(0, end-System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return int Number of tasks waiting in the queues */
+	public int getQueueDepth()
+	{
+		int depth = 0;
+		for(ThreadPoolExecutor stripe : stripes)
+		{
+			depth += stripe.getQueue().size();
+		}
+		return depth;
+	}
+
+	public long getSubmittedCount()
+	{
+		return submitted.get();
+	}
+
+	public long getCompletedCount()
+	{
+		return completed.get();
+	}
+
+	/** @return long Number of submissions that found their queue full and had to wait */
+	public long getBlockedCount()
+	{
+		return blocked.get();
+	}
+
+	/** @return long Number of tasks that were not queued, see {@link #execute} */
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+	/** @return long Average time in ms between submitting and starting a task */
+	public long getAverageLag()
+	{
+		long n = completed.get();
+		return n==0 ? 0 : totalLag.get()/n;
+	}
+
+	/** @return long Highest time in ms between submitting and starting a task */
+	public long getMaxLag()
+	{
+		return maxLag.get();
+	}
+
+	public String toString()
+	{
+		return "queueDepth="+getQueueDepth()+", submitted="+getSubmittedCount()+
+			   ", completed="+getCompletedCount()+", blocked="+getBlockedCount()+", rejected="+getRejectedCount()+
+			   ", avgLag="+getAverageLag()+"ms, maxLag="+getMaxLag()+"ms";
+	}
+}
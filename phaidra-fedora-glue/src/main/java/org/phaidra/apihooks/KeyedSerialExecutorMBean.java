@@ -0,0 +1,24 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+/**
+ * JMX view of a {@link KeyedSerialExecutor}.
+ */
+public interface KeyedSerialExecutorMBean
+{
+	int getQueueDepth();
+
+	long getSubmittedCount();
+
+	long getCompletedCount();
+
+	long getBlockedCount();
+
+	long getRejectedCount();
+
+	long getAverageLag();
+
+	long getMaxLag();
+}
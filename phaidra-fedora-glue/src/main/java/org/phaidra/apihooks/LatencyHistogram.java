@@ -0,0 +1,149 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed buckets from 1 ms to 10 s, the
+ * Prometheus default buckets. Recording is a few atomic increments.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean
+{
+	/** Upper bounds of the buckets in ms */
+	private static final double[] BOUNDS = { 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+	static
+	{
+		for(int i=0;i<BOUNDS.length;i++)
+		{
+			BOUNDS_NANOS[i] = (long)(BOUNDS[i]*1000000);
+		}
+	}
+
+	/** One more than BOUNDS, for everything above the last bound */
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length+1);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos The duration in ns
+	 */
+	public void record(long nanos)
+	{
+		int i = 0;
+		while(i<BOUNDS_NANOS.length && nanos>BOUNDS_NANOS[i])
+		{
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m = max.get();
+		while(nanos>m && !max.compareAndSet(m, nanos))
+		{
+			m = max.get();
+		}
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public double getTotalMillis()
+	{
+		return sum.get()/1e6;
+	}
+
+	public double getMeanMillis()
+	{
+		long n = count.get();
+		return n==0 ? 0 : sum.get()/1e6/n;
+	}
+
+	public double getMaxMillis()
+	{
+		return max.get()/1e6;
+	}
+
+	public double getMedianMillis()
+	{
+		return percentile(0.5);
+	}
+
+	public double get99thPercentileMillis()
+	{
+		return percentile(0.99);
+	}
+
+	private double percentile(double q)
+	{
+		long[] counts = getBucketCounts();
+		long total = 0;
+		for(long c : counts)
+		{
+			total += c;
+		}
+		long seen = 0;
+		for(int i=0;i<BOUNDS.length;i++)
+		{
+			seen += counts[i];
+			if(seen>0 && seen>=q*total)
+			{
+				return BOUNDS[i];
+			}
+		}
+		return getMaxMillis();
+	}
+
+	public long[] getBucketCounts()
+	{
+		long[] counts = new long[buckets.length()];
+		for(int i=0;i<counts.length;i++)
+		{
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+
+	public double[] getBucketBoundsMillis()
+	{
+		return BOUNDS.clone();
+	}
+
+	/**
+	 * Appends the histogram in the Prometheus text format.
+	 *
+	 * @param name The metric name
+	 * @param labels The labels without braces, e.g. <code>method="x"</code>
+	 */
+	void appendPrometheus(StringBuilder sb, String name, String labels)
+	{
+		long[] counts = getBucketCounts();
+		long cumulative = 0;
+		for(int i=0;i<counts.length;i++)
+		{
+			cumulative += counts[i];
+			String le = i<BOUNDS.length ? Double.toString(BOUNDS[i]/1000) : "+Inf";
+			sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+			  .append(cumulative).append('\n');
+		}
+		sb.append(name).append("_sum{").append(labels).append("} ").append(sum.get()/1e9).append('\n');
+		sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+	}
+
+	public String toString()
+	{
+		return "count="+getCount()+", mean="+getMeanMillis()+"ms, p50<="+getMedianMillis()+"ms, p99<="+
+			   get99thPercentileMillis()+"ms, max="+getMaxMillis()+"ms";
+	}
+}
@@ -0,0 +1,30 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+/**
+ * JMX view of a {@link LatencyHistogram}.
+ */
+public interface LatencyHistogramMBean
+{
+	long getCount();
+
+	double getTotalMillis();
+
+	double getMeanMillis();
+
+	double getMaxMillis();
+
+	/** @return double Upper bound of the bucket holding the median, in ms */
+	double getMedianMillis();
+
+	/** @return double Upper bound of the bucket holding the 99th percentile, in ms */
+	double get99thPercentileMillis();
+
+	/** @return long[] Count per bucket, see {@link #getBucketBoundsMillis()} */
+	long[] getBucketCounts();
+
+	/** @return double[] Upper bounds of the buckets in ms, the last bucket has none */
+	double[] getBucketBoundsMillis();
+}
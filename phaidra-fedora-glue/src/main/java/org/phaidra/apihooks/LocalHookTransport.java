@@ -0,0 +1,127 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fcrepo.server.Context;
+
+/**
+ * Calls the local {@link HookHandler}s in order and passes calls that none of
+ * them answers on to a delegate transport.
+ */
+public class LocalHookTransport implements HookTransport
+{
+	protected static Log log = LogFactory.getLog(LocalHookTransport.class);
+	
+	private final List<HookHandler> handlers;
+	
+	private final HookTransport delegate;
+	
+	/**
+	 * @param handlers The handlers, in the order they are asked
+	 * @param delegate The transport for unanswered calls, null to answer them with "OK"
+	 */
+	public LocalHookTransport(List<HookHandler> handlers, HookTransport delegate)
+	{
+		this.handlers = handlers;
+		this.delegate = delegate;
+	}
+	
+	public HookResult invokeHook(String method, Context context, String pid, Object[] params) throws APIHooksException
+	{
+		HookResult result = handle(method, context, pid, params);
+		if(result!=null)
+		{
+			return result;
+		}
+		if(delegate!=null)
+		{
+			return delegate.invokeHook(method, context, pid, params);
+		}
+		log.debug("runHook: no local handler for method |"+method+"|, pid |"+pid+"|, returning OK");
+		return new HookResult("OK", "");
+	}
+	
+	/**
+	 * @return boolean Always TRUE, unanswered events are sent on together if the delegate supports batches
+	 */
+	public boolean supportsBatch()
+	{
+		return true;
+	}
+	
+	public List<HookResult> invokeBatchHook(List<HookEvent> events) throws APIHooksException
+	{
+		List<HookResult> results = new ArrayList<HookResult>();
+		List<HookEvent> unanswered = new ArrayList<HookEvent>();
+		for(HookEvent event : events)
+		{
+			HookResult result = handle(event.getMethod(), event.getContext(), event.getPid(), event.getParams());
+			results.add(result);
+			if(result==null)
+			{
+				unanswered.add(event);
+			}
+		}
+		if(unanswered.isEmpty())
+		{
+			return results;
+		}
+		
+		List<HookResult> delegated;
+		if(delegate!=null && delegate.supportsBatch())
+		{
+			delegated = delegate.invokeBatchHook(unanswered);
+			if(delegated.size()!=unanswered.size())
+			{
+				throw new APIHooksException("Error processing hook XML: expected "+unanswered.size()+
+						" results, got "+delegated.size());
+			}
+		}
+		else
+		{
+			delegated = new ArrayList<HookResult>();
+			for(HookEvent event : unanswered)
+			{
+				delegated.add(invokeHook(event.getMethod(), event.getContext(), event.getPid(), event.getParams()));
+			}
+		}
+		// fill the gaps in event order
+		int j = 0;
+		for(int i=0;i<results.size();i++)
+		{
+			if(results.get(i)==null)
+			{
+				results.set(i, delegated.get(j++));
+			}
+		}
+		return results;
+	}
+	
+	private HookResult handle(String method, Context context, String pid, Object[] params) throws APIHooksException
+	{
+		for(HookHandler handler : handlers)
+		{
+			HookResult result = handler.handle(method, context, pid, params);
+			if(result!=null)
+			{
+				if(log.isDebugEnabled())
+				{
+					log.debug("runHook: "+handler.getClass().getName()+" answered method |"+method+"|, pid |"+pid+"|: "+result);
+				}
+				return result;
+			}
+		}
+		return null;
+	}
+	
+	public String toString()
+	{
+		return "local"+(delegate!=null ? " -> "+delegate : "");
+	}
+}
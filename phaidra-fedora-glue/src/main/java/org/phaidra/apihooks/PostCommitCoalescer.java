@@ -0,0 +1,163 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the asynchronous post-commit events of a PID for a time window,
+ * so that their commands can be committed together.
+ *
+ * The window is opened by the first event of a PID and collects the events
+ * of all users, in the order they arrived; one window per PID and user would
+ * let a later event of one user overtake an earlier one of another. A
+ * flushed window is split into runs of one user with {@link #splitByUser},
+ * each run is committed in a writer of its user.
+ */
+public class PostCommitCoalescer
+{
+	/**
+	 * Receives the events of a PID once its window closes.
+	 */
+	public interface Flush
+	{
+		/**
+		 * @param events The events of one PID, in the order they arrived
+		 */
+		void flush(List<PostCommitEvent> events);
+	}
+
+	/** Open windows by PID */
+	private final Map<String, List<PostCommitEvent>> windows = new HashMap<String, List<PostCommitEvent>>();
+
+	private final ScheduledExecutorService scheduler;
+
+	private final long window;
+
+	private final Flush flush;
+
+	/**
+	 * @param window Length of the window in ms
+	 * @param flush Receives the closed windows, called from the coalescing thread
+	 */
+	public PostCommitCoalescer(long window, Flush flush)
+	{
+		this.window = window;
+		this.flush = flush;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "phaidra-hooks-postcommit-coalesce");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Adds an event to the window of its PID, opening one if there is none.
+	 */
+	public void add(PostCommitEvent event)
+	{
+		final String pid = event.getPid();
+		synchronized(windows)
+		{
+			List<PostCommitEvent> events = windows.get(pid);
+			if(events!=null)
+			{
+				events.add(event);
+				return;
+			}
+			events = new ArrayList<PostCommitEvent>();
+			events.add(event);
+			windows.put(pid, events);
+		}
+		try
+		{
+			scheduler.schedule(new Runnable() {
+				public void run()
+				{
+					close(pid);
+				}
+			}, window, TimeUnit.MILLISECONDS);
+		}
+		catch(RejectedExecutionException ex)
+		{
+			// shutting down, flushed by shutdown()
+		}
+	}
+
+	private void close(String pid)
+	{
+		List<PostCommitEvent> events;
+		synchronized(windows)
+		{
+			events = windows.remove(pid);
+		}
+		if(events!=null)
+		{
+			flush.flush(events);
+		}
+	}
+
+	/**
+	 * Closes all open windows now, in the calling thread.
+	 */
+	public void shutdown()
+	{
+		scheduler.shutdownNow();
+		List<String> pids;
+		synchronized(windows)
+		{
+			pids = new ArrayList<String>(windows.keySet());
+		}
+		for(String pid : pids)
+		{
+			close(pid);
+		}
+	}
+
+	/**
+	 * Splits the events of a window into runs of consecutive events of the
+	 * same user, keeping the order.
+	 *
+	 * @param events The events of one PID
+	 * @return List The runs, in order
+	 */
+	public static List<List<PostCommitEvent>> splitByUser(List<PostCommitEvent> events)
+	{
+		List<List<PostCommitEvent>> runs = new ArrayList<List<PostCommitEvent>>();
+		List<PostCommitEvent> run = null;
+		String user = null;
+		for(PostCommitEvent event : events)
+		{
+			String loginId = event.getLoginId();
+			if(run==null || !(user==null ? loginId==null : user.equals(loginId)))
+			{
+				run = new ArrayList<PostCommitEvent>();
+				runs.add(run);
+				user = loginId;
+			}
+			run.add(event);
+		}
+		return runs;
+	}
+
+	/** @return int The number of open windows */
+	public int size()
+	{
+		synchronized(windows)
+		{
+			return windows.size();
+		}
+	}
+}
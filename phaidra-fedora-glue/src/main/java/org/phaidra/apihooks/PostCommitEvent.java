@@ -0,0 +1,118 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import org.fcrepo.server.Context;
+
+/**
+ * A post-commit hook call that still has to be delivered.
+ */
+public class PostCommitEvent
+{
+	private final String method;
+
+	private final String pid;
+
+	private final String loginId;
+
+	private final String logMessage;
+
+	private final String[] params;
+
+	/** The original calling context, null for events replayed from the journal */
+	private transient Context context;
+
+	/** Journal sequence number, 0 if the event is not journaled */
+	long id;
+
+	/** Number of the journal segment holding the event */
+	long segment;
+
+	private int attempts;
+
+	public PostCommitEvent(String method, String pid, String loginId, String logMessage,
+			String[] params, Context context)
+	{
+		this.method = method;
+		this.pid = pid;
+		this.loginId = loginId;
+		this.logMessage = logMessage;
+		this.params = params;
+		this.context = context;
+	}
+
+	/**
+	 * Converts hook parameters to strings, so that they can be journaled.
+	 */
+	public static String[] toStrings(Object[] params)
+	{
+		String[] s = new String[params.length];
+		for(int i=0;i<params.length;i++)
+		{
+			s[i] = params[i]==null ? null : params[i].toString();
+		}
+		return s;
+	}
+
+	public String getMethod()
+	{
+		return method;
+	}
+
+	public String getPid()
+	{
+		return pid;
+	}
+
+	public String getLoginId()
+	{
+		return loginId;
+	}
+
+	public String getLogMessage()
+	{
+		return logMessage;
+	}
+
+	public String[] getParams()
+	{
+		return params;
+	}
+
+	public Context getContext()
+	{
+		return context;
+	}
+
+	public void setContext(Context context)
+	{
+		this.context = context;
+	}
+
+	public long getId()
+	{
+		return id;
+	}
+
+	public boolean isJournaled()
+	{
+		return id!=0;
+	}
+
+	public int getAttempts()
+	{
+		return attempts;
+	}
+
+	/** @return int The number of attempts including this one */
+	public int nextAttempt()
+	{
+		return ++attempts;
+	}
+
+	public String toString()
+	{
+		return "#"+id+" "+method+" "+pid;
+	}
+}
@@ -0,0 +1,578 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only on-disk journal of post-commit hook events.
+ *
+ * The journal is a sequence of fixed-size, memory-mapped segment files. Each
+ * record is <code>[length][crc32][body]</code>; a zero length marks the end of
+ * a segment, a bad checksum a torn write. Events are appended when the hook
+ * is scheduled and an ACK record is appended once it has been delivered.
+ *
+ * Appending an event returns only after the record has been forced to disk.
+ * Concurrent appenders share one force (group commit): the first thread
+ * forces the segment, the others wait for it. ACK records are not forced on
+ * their own, a lost ACK only means the event is delivered again.
+ *
+ * The oldest segments are deleted once none of their events is live. A
+ * segment is never deleted before the older ones: it may hold the ACKs of
+ * their events, which would be replayed without them. The oldest sealed
+ * segment is compacted when only a few of its events are live, by copying
+ * them into the active segment.
+ */
+public class PostCommitJournal
+{
+	protected static Log log = LogFactory.getLog(PostCommitJournal.class);
+
+	private static final byte EVENT = 1;
+
+	private static final byte ACK = 2;
+
+	private static final int HEADER = 8;
+
+	private static final String PREFIX = "postcommit-";
+
+	private static final String SUFFIX = ".journal";
+
+	private final File dir;
+
+	private final int segmentSize;
+
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+	/** Unacknowledged events by id */
+	private final Map<Long, PostCommitEvent> live = new HashMap<Long, PostCommitEvent>();
+
+	private Segment active;
+
+	private long nextId = 1;
+
+	private long appendedSeq;
+
+	private final Object syncLock = new Object();
+
+	private long durableSeq;
+
+	private boolean syncing;
+
+	private long syncs;
+
+	private long appended;
+
+	private long acked;
+
+	private static class Segment
+	{
+		final long number;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		int records;
+		int liveEvents;
+
+		Segment(long number, File file, int size) throws IOException
+		{
+			this.number = number;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			if(raf.length()<size)
+			{
+				raf.setLength(size);
+			}
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		}
+
+		void close()
+		{
+			try
+			{
+				raf.close();
+			}
+			catch(IOException ex)
+			{
+				log.warn("cannot close journal segment "+file+": "+ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @param dir Directory for the segment files, created if missing
+	 * @param segmentSize Size of a segment file in bytes
+	 */
+	public PostCommitJournal(File dir, int segmentSize)
+	{
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Reads all existing segments and starts a new active segment.
+	 *
+	 * @return List The events that have not been acknowledged, oldest first
+	 * @throws IOException If the journal cannot be read or written
+	 */
+	public synchronized List<PostCommitEvent> open() throws IOException
+	{
+		if(!dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IOException("cannot create journal directory "+dir);
+		}
+		File[] files = dir.listFiles();
+		List<File> found = new ArrayList<File>();
+		for(int i=0;files!=null && i<files.length;i++)
+		{
+			String name = files[i].getName();
+			if(name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+			{
+				found.add(files[i]);
+			}
+		}
+		Collections.sort(found);
+
+		long records = 0;
+		long start = System.currentTimeMillis();
+		long lastNumber = 0;
+		for(File f : found)
+		{
+			String name = f.getName();
+			long number = Long.parseLong(name.substring(PREFIX.length(), name.length()-SUFFIX.length()));
+			Segment s = new Segment(number, f, 0);
+			segments.put(Long.valueOf(number), s);
+			records += scan(s);
+			lastNumber = number;
+		}
+		long took = System.currentTimeMillis()-start;
+		log.info("replayed "+records+" journal records from "+found.size()+" segments in "+took+" ms ("+
+				(took==0 ? records : records*1000/took)+" records/s), "+live.size()+" unacknowledged events");
+
+		// nothing live in there anymore
+		trimHead();
+
+		active = newSegment(lastNumber+1);
+
+		List<PostCommitEvent> pending = new ArrayList<PostCommitEvent>(live.values());
+		Collections.sort(pending, new Comparator<PostCommitEvent>() {
+			public int compare(PostCommitEvent a, PostCommitEvent b)
+			{
+				return a.id<b.id ? -1 : (a.id==b.id ? 0 : 1);
+			}
+		});
+		return pending;
+	}
+
+	/**
+	 * Reads the records of a segment until the end marker or a torn record.
+	 *
+	 * @return int The number of valid records
+	 */
+	private int scan(Segment s)
+	{
+		ByteBuffer b = s.buffer;
+		b.position(0);
+		CRC32 crc = new CRC32();
+		while(b.remaining()>=HEADER)
+		{
+			int length = b.getInt();
+			int checksum = b.getInt();
+			if(length<=0 || length>b.remaining())
+			{
+				break;
+			}
+			byte[] body = new byte[length];
+			b.get(body);
+			crc.reset();
+			crc.update(body, 0, length);
+			if((int)crc.getValue()!=checksum)
+			{
+				log.warn("torn record in journal segment "+s.file+" at "+(b.position()-length-HEADER)+", ignoring the rest");
+				break;
+			}
+			ByteBuffer r = ByteBuffer.wrap(body);
+			byte type = r.get();
+			long id = r.getLong();
+			nextId = Math.max(nextId, id+1);
+			s.records++;
+			if(type==EVENT)
+			{
+				r.getLong(); // created
+				String method = getString(r);
+				String pid = getString(r);
+				String loginId = getString(r);
+				String logMessage = getString(r);
+				String[] params = new String[r.getInt()];
+				for(int i=0;i<params.length;i++)
+				{
+					params[i] = getString(r);
+				}
+				PostCommitEvent e = new PostCommitEvent(method, pid, loginId, logMessage, params, null);
+				e.id = id;
+				e.segment = s.number;
+				// a compacted copy replaces the original
+				PostCommitEvent old = live.put(Long.valueOf(id), e);
+				if(old!=null)
+				{
+					release(old);
+				}
+				s.liveEvents++;
+			}
+			else if(type==ACK)
+			{
+				PostCommitEvent e = live.remove(Long.valueOf(id));
+				if(e!=null)
+				{
+					release(e);
+				}
+			}
+		}
+		s.buffer.position(b.position());
+		return s.records;
+	}
+
+	/**
+	 * Appends an event and waits until it is on disk.
+	 *
+	 * @param e The event, gets its id assigned
+	 * @throws IOException If the event could not be written
+	 */
+	public void append(PostCommitEvent e) throws IOException
+	{
+		long seq;
+		synchronized(this)
+		{
+			long id = nextId++;
+			write(encodeEvent(id, e));
+			e.id = id;
+			e.segment = active.number;
+			active.liveEvents++;
+			live.put(Long.valueOf(id), e);
+			appended++;
+			seq = ++appendedSeq;
+		}
+		awaitDurable(seq);
+	}
+
+	/**
+	 * Marks an event as delivered. Deletes the segments that are no longer needed, see {@link #trimHead()}.
+	 *
+	 * @param e The delivered event
+	 * @throws IOException If the ACK could not be written
+	 */
+	public synchronized void ack(PostCommitEvent e) throws IOException
+	{
+		if(live.remove(Long.valueOf(e.id))==null)
+		{
+			return;
+		}
+		ByteBuffer body = ByteBuffer.allocate(9);
+		body.put(ACK);
+		body.putLong(e.id);
+		write(body.array());
+		appendedSeq++;
+		acked++;
+		release(e);
+	}
+
+	/**
+	 * Copies the live events of the oldest sealed segments into the active
+	 * segment while they are mostly acknowledged, and deletes the old segment
+	 * files.
+	 *
+	 * @return int The number of compacted segments
+	 * @throws IOException If writing to the active segment failed
+	 */
+	public int compact() throws IOException
+	{
+		int compacted = 0;
+		long seq;
+		synchronized(this)
+		{
+			List<Segment> sealed = new ArrayList<Segment>(segments.headMap(Long.valueOf(active.number)).values());
+			for(Segment s : sealed)
+			{
+				// the segments after it cannot be deleted before it anyway
+				if(s.liveEvents*4>s.records)
+				{
+					break;
+				}
+				List<PostCommitEvent> moving = new ArrayList<PostCommitEvent>();
+				for(PostCommitEvent e : live.values())
+				{
+					if(e.segment==s.number)
+					{
+						moving.add(e);
+					}
+				}
+				for(PostCommitEvent e : moving)
+				{
+					write(encodeEvent(e.id, e));
+					s.liveEvents--;
+					e.segment = active.number;
+					active.liveEvents++;
+				}
+				compacted++;
+				// the copies have to be durable before the old segment goes away
+				active.buffer.force();
+				trimHead();
+			}
+			seq = appendedSeq;
+		}
+		if(compacted>0)
+		{
+			log.debug("compacted "+compacted+" journal segments");
+			awaitDurable(seq);
+		}
+		return compacted;
+	}
+
+	public synchronized void close()
+	{
+		if(active!=null)
+		{
+			active.buffer.force();
+		}
+		for(Segment s : segments.values())
+		{
+			s.close();
+		}
+		segments.clear();
+	}
+
+	/**
+	 * Forces the active segment to disk unless another thread already did so
+	 * for everything up to <code>seq</code>.
+	 */
+	private void awaitDurable(long seq) throws IOException
+	{
+		while(true)
+		{
+			synchronized(syncLock)
+			{
+				while(syncing && durableSeq<seq)
+				{
+					try
+					{
+						syncLock.wait();
+					}
+					catch(InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+						throw new IOException("interrupted while waiting for journal sync");
+					}
+				}
+				if(durableSeq>=seq)
+				{
+					return;
+				}
+				syncing = true;
+			}
+			long target = 0;
+			try
+			{
+				MappedByteBuffer b;
+				synchronized(this)
+				{
+					target = appendedSeq;
+					b = active.buffer;
+				}
+				// earlier segments are forced when they are sealed
+				b.force();
+			}
+			finally
+			{
+				synchronized(syncLock)
+				{
+					syncing = false;
+					durableSeq = Math.max(durableSeq, target);
+					syncs++;
+					syncLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a record to the active segment, starting a new one if it is full.
+	 * Must be called with the journal locked.
+	 */
+	private void write(byte[] body) throws IOException
+	{
+		if(body.length+HEADER>segmentSize-HEADER)
+		{
+			throw new IOException("journal record of "+body.length+" bytes does not fit into a segment");
+		}
+		if(active.buffer.remaining()<body.length+HEADER)
+		{
+			// seal the active segment, the end marker is the zero-filled rest
+			active.buffer.force();
+			active = newSegment(active.number+1);
+			trimHead();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		active.buffer.putInt(body.length);
+		active.buffer.putInt((int)crc.getValue());
+		active.buffer.put(body);
+		active.records++;
+	}
+
+	private void release(PostCommitEvent e)
+	{
+		Segment s = segments.get(Long.valueOf(e.segment));
+		if(s==null)
+		{
+			return;
+		}
+		s.liveEvents--;
+		// not while open() is still scanning
+		if(s.liveEvents<=0 && active!=null)
+		{
+			trimHead();
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments as long as none of their events is live.
+	 * Stops at the first segment with live events, the segments after it may
+	 * hold ACKs of its events.
+	 */
+	private void trimHead()
+	{
+		while(!segments.isEmpty())
+		{
+			Segment s = segments.firstEntry().getValue();
+			if(s==active || s.liveEvents>0)
+			{
+				return;
+			}
+			segments.remove(Long.valueOf(s.number));
+			delete(s);
+		}
+	}
+
+	private Segment newSegment(long number) throws IOException
+	{
+		File f = new File(dir, PREFIX+String.format("%016d", Long.valueOf(number))+SUFFIX);
+		Segment s = new Segment(number, f, segmentSize);
+		segments.put(Long.valueOf(number), s);
+		return s;
+	}
+
+	private void delete(Segment s)
+	{
+		s.close();
+		if(!s.file.delete())
+		{
+			log.warn("cannot delete journal segment "+s.file);
+		}
+	}
+
+	private static byte[] encodeEvent(long id, PostCommitEvent e) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(EVENT);
+		out.writeLong(id);
+		out.writeLong(System.currentTimeMillis());
+		putString(out, e.getMethod());
+		putString(out, e.getPid());
+		putString(out, e.getLoginId());
+		putString(out, e.getLogMessage());
+		String[] params = e.getParams();
+		out.writeInt(params.length);
+		for(int i=0;i<params.length;i++)
+		{
+			putString(out, params[i]);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void putString(DataOutputStream out, String s) throws IOException
+	{
+		if(s==null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String getString(ByteBuffer b)
+	{
+		int length = b.getInt();
+		if(length<0)
+		{
+			return null;
+		}
+		try
+		{
+			String s = new String(b.array(), b.position(), length, "UTF-8");
+			b.position(b.position()+length);
+			return s;
+		}
+		catch(IOException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/** @return int Number of unacknowledged events */
+	public synchronized int getLiveCount()
+	{
+		return live.size();
+	}
+
+	public synchronized int getSegmentCount()
+	{
+		return segments.size();
+	}
+
+	public synchronized long getAppendedCount()
+	{
+		return appended;
+	}
+
+	public synchronized long getAckedCount()
+	{
+		return acked;
+	}
+
+	/** @return long Number of forces to disk; appended/syncs is the group commit batch size */
+	public long getSyncCount()
+	{
+		synchronized(syncLock)
+		{
+			return syncs;
+		}
+	}
+
+	public String toString()
+	{
+		return "live="+getLiveCount()+", segments="+getSegmentCount()+", appended="+getAppendedCount()+
+			   ", acked="+getAckedCount()+", syncs="+getSyncCount();
+	}
+}
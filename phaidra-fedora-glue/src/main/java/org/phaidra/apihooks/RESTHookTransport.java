@@ -0,0 +1,361 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fcrepo.common.Constants;
+import org.fcrepo.server.Context;
+
+/**
+ * Calls the hook with a POST to a REST endpoint.
+ *
+ * The request is sent as form parameters, or in the binary protocol of
+ * {@link HookWireFormat} if that is enabled. A hook that answers a binary
+ * request with 415 Unsupported Media Type gets form parameters from then on.
+ * The hook may answer with result XML or in the binary protocol, see the
+ * Accept header.
+ *
+ * With a {@link ContentDigestCache}, datastream content recently sent to
+ * the hook is sent as its digest: as <code>param<i>n</i>.digest</code>
+ * instead of <code>param<i>n</i></code>, or as a digest string in the binary
+ * protocol.
+ */
+public class RESTHookTransport implements HookTransport
+{
+	protected static Log log = LogFactory.getLog(RESTHookTransport.class);
+	
+	private final String restMethod;
+	
+	private final HookHttpClient httpClient;
+	
+	private final int readTimeout;
+	
+	private final HookResultParser parser;
+	
+	private final SubjectAttributeCache subjects;
+	
+	/** TRUE while requests are sent in the binary protocol */
+	private volatile boolean binary;
+	
+	/** Digests of the content sent to this endpoint, null to always send the content */
+	private final ContentDigestCache digests;
+	
+	/** Per-thread buffer for hook responses; buffers above 1 MB are not kept */
+	private static final ThreadLocal<HookBuffer> responseBuffer = new ThreadLocal<HookBuffer>() {
+		protected HookBuffer initialValue()
+		{
+			return new HookBuffer(8192, 1024*1024);
+		}
+	};
+	
+	/**
+	 * @param restMethod The URL to post to
+	 * @param httpClient The shared client
+	 * @param readTimeout Read timeout in ms, shortened to the request deadline
+	 * @param parser The parser for the hook result XML
+	 * @param subjects The cache of encoded subject attributes
+	 * @param binary TRUE to send requests in the binary protocol
+	 * @param digests Digests of the content sent to this endpoint, null to always send the content
+	 * @throws IllegalArgumentException If the URL is not an absolute http or https URL
+	 */
+	public RESTHookTransport(String restMethod, HookHttpClient httpClient, int readTimeout, HookResultParser parser,
+			SubjectAttributeCache subjects, boolean binary, ContentDigestCache digests)
+	{
+		this.restMethod = checkURL(restMethod);
+		this.httpClient = httpClient;
+		this.readTimeout = readTimeout;
+		this.parser = parser;
+		this.subjects = subjects;
+		this.binary = binary;
+		this.digests = digests;
+	}
+
+	/**
+	 * @return String The URL, if it is an absolute http or https URL
+	 * @throws IllegalArgumentException If it is not
+	 */
+	private static String checkURL(String restMethod)
+	{
+		try
+		{
+			URI uri = new URI(restMethod, true);
+			String scheme = uri.getScheme();
+			if(!("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) || uri.getHost()==null)
+			{
+				throw new IllegalArgumentException("not an absolute http or https URL");
+			}
+			return restMethod;
+		}
+		catch(URIException ex)
+		{
+			throw new IllegalArgumentException("not a valid URL: "+ex.getMessage());
+		}
+	}
+	
+	public HookResult invokeHook(String method, Context context, String pid, Object[] params) throws APIHooksException
+	{
+		log.debug("runHook: called for method=|"+method+"|, pid=|"+pid+"|");
+		if(digests==null)
+		{
+			return single(send(method, context, pid, params));
+		}
+		
+		HookResult result = single(send(method, context, pid, digests.replace(params)));
+		if(ContentDigestCache.NEED_CONTENT.equals(result.getVerdict()))
+		{
+			log.debug("runHook: hook asked for the content for method |"+method+"|, pid |"+pid+"|");
+			digests.forget(params);
+			result = single(send(method, context, pid, params));
+		}
+		digests.sent(params);
+		return result;
+	}
+	
+	private List<HookResult> send(String method, Context context, String pid, Object[] params) throws APIHooksException
+	{
+		if(binary)
+		{
+			BinaryRequestEntity content = new BinaryRequestEntity(
+					context.getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri), pid, subjects.get(context).getPairs());
+			content.addEvent(method, params);
+			List<HookResult> results = post(content, method, false);
+			if(results!=null)
+			{
+				return results;
+			}
+		}
+		
+		// the body is encoded while it is sent, see FormRequestEntity
+		FormRequestEntity content = new FormRequestEntity();
+		content.add("method", method);
+		content.add("username", context.getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri));
+		content.add("pid", pid);
+		for(int j=0;j<params.length;j++)
+		{
+			addParam(content, "param"+Integer.toString(j), params[j]);
+		}
+		addSubjectAttributes(content, context);
+		return post(content, method, false);
+	}
+	
+	private static HookResult single(List<HookResult> results) throws APIHooksException
+	{
+		if(results.size()!=1)
+		{
+			throw new APIHooksException("Error processing hook response: expected 1 result, got "+results.size());
+		}
+		return results.get(0);
+	}
+	
+	public boolean supportsBatch()
+	{
+		return true;
+	}
+	
+	/**
+	 * Sends all events in one request with method "_batch". Event <i>n</i> is
+	 * sent as <code>event<i>n</i>.method</code> and 
+	 * <code>event<i>n</i>.param<i>m</i></code>; the hook answers with one
+	 * <code>ph:result</code> element per event, in the same order.
+	 */
+	public List<HookResult> invokeBatchHook(List<HookEvent> events) throws APIHooksException
+	{
+		log.debug("runHook: called for "+events.size()+" batched events, pid=|"+events.get(0).getPid()+"|");
+		if(digests==null)
+		{
+			return sendBatch(events, false);
+		}
+		
+		List<HookResult> results = sendBatch(events, true);
+		for(HookResult result : results)
+		{
+			if(ContentDigestCache.NEED_CONTENT.equals(result.getVerdict()))
+			{
+				log.debug("runHook: hook asked for the content of a batch, pid |"+events.get(0).getPid()+"|");
+				for(HookEvent event : events)
+				{
+					digests.forget(event.getParams());
+				}
+				results = sendBatch(events, false);
+				break;
+			}
+		}
+		for(HookEvent event : events)
+		{
+			digests.sent(event.getParams());
+		}
+		return results;
+	}
+	
+	/**
+	 * @param replace TRUE to send content the hook already has as its digest
+	 */
+	private List<HookResult> sendBatch(List<HookEvent> events, boolean replace) throws APIHooksException
+	{
+		HookEvent first = events.get(0);
+		if(binary)
+		{
+			BinaryRequestEntity content = new BinaryRequestEntity(
+					first.getContext().getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri), first.getPid(), 
+					subjects.get(first.getContext()).getPairs());
+			for(HookEvent event : events)
+			{
+				content.addEvent(event.getMethod(), replace ? digests.replace(event.getParams()) : event.getParams());
+			}
+			List<HookResult> results = post(content, "_batch", true);
+			if(results!=null)
+			{
+				return results;
+			}
+		}
+		
+		FormRequestEntity content = new FormRequestEntity();
+		content.add("method", "_batch");
+		content.add("username", first.getContext().getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri));
+		content.add("pid", first.getPid());
+		content.add("count", Integer.toString(events.size()));
+		for(int n=0;n<events.size();n++)
+		{
+			HookEvent event = events.get(n);
+			content.add("event"+n+".method", event.getMethod());
+			Object[] params = replace ? digests.replace(event.getParams()) : event.getParams();
+			for(int j=0;j<params.length;j++)
+			{
+				addParam(content, "event"+n+".param"+j, params[j]);
+			}
+		}
+		addSubjectAttributes(content, first.getContext());
+		return post(content, "_batch", true);
+	}
+	
+	private static void addParam(FormRequestEntity content, String name, Object value)
+	{
+		if(value instanceof HookContent.Digest)
+		{
+			content.add(name+".digest", value);
+		}
+		else
+		{
+			content.add(name, value);
+		}
+	}
+	
+	private void addSubjectAttributes(FormRequestEntity content, Context context)
+	{
+		// encoded once per subject, see SubjectAttributeCache
+		SubjectAttributeCache.Entry attrs = subjects.get(context);
+		if(log.isDebugEnabled())
+		{
+			String[] pairs = attrs.getPairs();
+			for(int j=0;j<pairs.length;j++)
+			{
+				log.debug("runHook: will send |"+pairs[j]+"| as subject attribute");
+			}
+		}
+		content.addEncoded(attrs.getForm());
+	}
+	
+	/**
+	 * Posts the request to the hook and returns the results.
+	 *
+	 * @return List The results, null if the hook does not accept binary requests
+	 */
+	private List<HookResult> post(RequestEntity content, String method, boolean batch) throws APIHooksException
+	{
+		PostMethod post = new PostMethod(restMethod);
+		HookBuffer response = responseBuffer.get();
+		try
+		{
+			post.getParams().setSoTimeout(HookDeadline.callTimeout(readTimeout));
+			post.setRequestEntity(content);
+			post.setContentChunked(true);
+			post.setRequestHeader("Accept", HookWireFormat.CONTENT_TYPE+", text/xml;q=0.9, text/plain;q=0.5");
+			int status = httpClient.execute(post);
+		    
+		    // Get response data.
+		    InputStream input = post.getResponseBodyAsStream();
+		    if(input!=null)
+		    {
+		    	response.readFrom(input);
+		    	input.close();
+		    }
+		    
+		    if(status==415 && content instanceof BinaryRequestEntity)
+		    {
+		    	log.warn("runHook: REST hook "+restMethod+" does not accept binary requests, using form parameters");
+		    	binary = false;
+		    	return null;
+		    }
+		    if(status>=400)
+		    {
+		    	throw new Exception("HTTP status "+status+" "+post.getStatusText());
+		    }
+		    
+		    Header ctHeader = post.getResponseHeader("Content-Type");
+		    String ct = ctHeader==null ? "" : ctHeader.getValue();
+		    if(ct.startsWith(HookWireFormat.CONTENT_TYPE))
+		    {
+		    	log.debug("runHook: successful REST invocation for method |"+method+"|, binary response");
+		    	return HookWireFormat.readResults(response.array(), response.size());
+		    }
+		    String rval = response.toString("UTF-8");
+		    if(ct.startsWith("text/xml"))
+		    {
+		    	if(log.isDebugEnabled())
+		    	{
+		    		log.debug("runHook: successful REST invocation for method |"+method+"|, returning: "+rval);
+		    	}
+		    	return batch ? parser.parseBatch(rval) : Collections.singletonList(parser.parse(rval));
+		    }
+		    else if(ct.startsWith("text/plain"))
+		    {
+		    	log.debug("runHook: successful REST invocation for method |"+method+"|, but hook returned an error: "+rval);
+		    	throw new Exception(rval);
+		    }
+		    else
+		    {
+		    	throw new Exception("Invalid content type "+ct);
+		    }
+		}
+		catch(APIHooksException ex)
+		{
+			// the response could not be parsed
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			log.error("runHook: error calling REST hook "+restMethod+": "+ex.toString());
+			throw new APIHooksException("Error calling REST hook: "+ex.toString(), ex);
+		}
+		finally
+		{
+			response.recycle();
+			// return the connection to the pool
+			post.releaseConnection();
+		}
+	}
+	
+	/**
+	 * @return ContentDigestCache The digests of the content sent to this endpoint, null if disabled
+	 */
+	public ContentDigestCache getContentDigestCache()
+	{
+		return digests;
+	}
+	
+	public String toString()
+	{
+		return "REST "+restMethod;
+	}
+}
@@ -0,0 +1,38 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import org.apache.axis.transport.http.CommonsHTTPSender;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+/**
+ * Axis HTTP transport for the SOAP hooks.
+ *
+ * Same as Axis' own {@link CommonsHTTPSender} (pooled keep-alive connections),
+ * but the pool size and timeouts come from fedora.fcfg instead of the global
+ * <code>AxisProperties</code>, so the settings don't leak into the Axis
+ * clients of the Fedora server itself. The pool wait and the connect timeout
+ * are shortened to the remaining {@link HookDeadline}, as for the REST hooks.
+ */
+public class SOAPHookHTTPSender extends CommonsHTTPSender
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param maxConnections Maximum number of pooled connections (per host and in total)
+	 * @param connectTimeout Connect timeout in ms (0 = infinite)
+	 * @param readTimeout Default socket read timeout in ms (0 = infinite)
+	 */
+	public SOAPHookHTTPSender(int maxConnections, int connectTimeout, int readTimeout)
+	{
+		super();
+		connectionManager = new HookHttpClient.DeadlineConnectionManager(connectTimeout);
+		HttpConnectionManagerParams params = connectionManager.getParams();
+		params.setMaxTotalConnections(maxConnections);
+		params.setDefaultMaxConnectionsPerHost(maxConnections);
+		params.setConnectionTimeout(connectTimeout);
+		params.setSoTimeout(readTimeout);
+		params.setStaleCheckingEnabled(true);
+	}
+}
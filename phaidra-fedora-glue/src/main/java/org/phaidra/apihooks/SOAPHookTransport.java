@@ -0,0 +1,157 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.xml.namespace.QName;
+import javax.xml.rpc.ServiceException;
+
+import org.apache.axis.client.Call;
+import org.apache.axis.client.Service;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.fcrepo.common.Constants;
+import org.fcrepo.server.Context;
+
+/**
+ * Calls the hook with a SOAP request to an endpoint.
+ */
+public class SOAPHookTransport implements HookTransport
+{
+	protected static Log log = LogFactory.getLog(SOAPHookTransport.class);
+	
+	private final Service service;
+	
+	private final URL endpoint;
+	
+	private final QName operation;
+	
+	private final int readTimeout;
+	
+	private final HookResultParser parser;
+	
+	private final SubjectAttributeCache subjects;
+	
+	/** Idle, pre-configured Calls. A Call is not thread-safe, so it is only used by one thread at a time. */
+	private final BlockingQueue<Call> callPool;
+	
+	/**
+	 * @param service The shared Axis service
+	 * @param endpoint The SOAP endpoint
+	 * @param operation The SOAP operation
+	 * @param readTimeout Read timeout in ms, shortened to the request deadline
+	 * @param poolSize Number of pooled Calls
+	 * @param parser The parser for the hook result XML
+	 * @param subjects The cache of subject attributes
+	 * @throws ServiceException If Axis cannot create a Call
+	 */
+	public SOAPHookTransport(Service service, URL endpoint, QName operation, int readTimeout, int poolSize,
+			HookResultParser parser, SubjectAttributeCache subjects) throws ServiceException
+	{
+		this.subjects = subjects;
+		this.parser = parser;
+		this.service = service;
+		this.endpoint = endpoint;
+		this.operation = operation;
+		this.readTimeout = readTimeout;
+		callPool = new LinkedBlockingQueue<Call>(Math.max(1, poolSize));
+		for(int j=0;j<poolSize;j++)
+		{
+			callPool.offer(createCall());
+		}
+	}
+	
+	private Call createCall() throws ServiceException
+	{
+		Call call = (Call)service.createCall();
+		call.setTargetEndpointAddress(endpoint);
+		call.setOperationName(operation);
+		call.setTimeout(Integer.valueOf(readTimeout));
+		return call;
+	}
+
+	public HookResult invokeHook(String method, Context context, String pid, Object[] params) throws APIHooksException
+	{
+		String rval = null;
+		
+		// read once per subject, see SubjectAttributeCache; sent as Object[] like before
+		String[] pairs = subjects.get(context).getPairs();
+		Object[] attrs = new Object[pairs.length];
+		System.arraycopy(pairs, 0, attrs, 0, pairs.length);
+		if(log.isDebugEnabled())
+		{
+			for(int j=0;j<pairs.length;j++)
+			{
+				log.debug("runHook: will send |"+pairs[j]+"| as subject attribute");
+			}
+		}
+		
+		String loginId = context.getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri);
+		
+		log.debug("runHook: called for method=|"+method+"|, pid=|"+pid+"|");
+		try
+		{
+			Call call = callPool.poll();
+			if(call==null)
+			{
+				call = createCall();
+			}
+			call.setTimeout(Integer.valueOf(HookDeadline.callTimeout(readTimeout)));
+			rval = (String)call.invoke(new Object[] { method, loginId, pid, toSOAP(params), attrs });
+			// only successful Calls go back to the pool, a failed one may be in an odd state
+			callPool.offer(call);
+			
+			log.debug("runHook: successful SOAP invocation for method |"+method+"|, returning "+rval);
+		}
+		catch(Exception ex)
+		{
+			log.error("runHook: error calling SOAP hook "+endpoint+": "+ex.getMessage());
+			throw new APIHooksException("Error calling SOAP hook: "+ex.getMessage(), ex);
+		}
+		
+		return parser.parse(rval);
+	}
+	
+	/**
+	 * Datastream content is sent as a string, Axis has no serializer for {@link HookContent}.
+	 */
+	private static Object[] toSOAP(Object[] params)
+	{
+		Object[] rval = params;
+		for(int j=0;j<params.length;j++)
+		{
+			if(params[j] instanceof HookContent)
+			{
+				if(rval==params)
+				{
+					rval = params.clone();
+				}
+				rval[j] = params[j].toString();
+			}
+		}
+		return rval;
+	}
+	
+	/**
+	 * @return boolean Always FALSE, the SOAP operation takes a single event
+	 */
+	public boolean supportsBatch()
+	{
+		return false;
+	}
+	
+	public List<HookResult> invokeBatchHook(List<HookEvent> events) throws APIHooksException
+	{
+		throw new APIHooksException("SOAP hooks do not support batches");
+	}
+	
+	public String toString()
+	{
+		return "SOAP "+endpoint;
+	}
+}
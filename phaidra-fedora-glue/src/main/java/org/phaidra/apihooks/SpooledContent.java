@@ -0,0 +1,157 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A stream spooled once to a temp file, so that it can be read several
+ * times without keeping it on the heap. Content up to 2 GB is read back
+ * from a memory mapping of the file.
+ */
+public class SpooledContent
+{
+	private static final long TRANSFER_SIZE = 1024*1024;
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final long size;
+
+	/**
+	 * Reads <code>in</code> to the end into a temp file. <code>in</code> is not closed.
+	 *
+	 * @param in The stream to spool
+	 * @param dir The directory for the temp file, null for the default
+	 * @throws IOException If the stream cannot be read or the file written
+	 */
+	public SpooledContent(InputStream in, File dir) throws IOException
+	{
+		file = File.createTempFile("phaidra-hooks", ".spool", dir);
+		raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			ReadableByteChannel src = Channels.newChannel(in);
+			long pos = 0;
+			long n;
+			while((n = channel.transferFrom(src, pos, TRANSFER_SIZE))>0)
+			{
+				pos += n;
+			}
+			size = pos;
+		}
+		catch(IOException ex)
+		{
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return long The size of the content in bytes
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return InputStream A new stream over the whole content, supports mark/reset
+	 */
+	public InputStream newInputStream() throws IOException
+	{
+		if(size>Integer.MAX_VALUE)
+		{
+			return new FileInputStream(file);
+		}
+		return new MappedInputStream(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size));
+	}
+
+	/**
+	 * Closes and deletes the temp file. Streams still open on a mapping can
+	 * be read to the end.
+	 */
+	public void close()
+	{
+		try
+		{
+			raf.close();
+		}
+		catch(IOException ex)
+		{
+			// nothing left to do
+		}
+		if(!file.delete())
+		{
+			file.deleteOnExit();
+		}
+	}
+
+	private static class MappedInputStream extends InputStream
+	{
+		private final ByteBuffer buf;
+
+		MappedInputStream(ByteBuffer buf)
+		{
+			this.buf = buf;
+		}
+
+		public int read()
+		{
+			return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int off, int len)
+		{
+			if(len==0)
+			{
+				return 0;
+			}
+			if(!buf.hasRemaining())
+			{
+				return -1;
+			}
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		public long skip(long n)
+		{
+			int k = (int)Math.max(0, Math.min(n, buf.remaining()));
+			buf.position(buf.position()+k);
+			return k;
+		}
+
+		public int available()
+		{
+			return buf.remaining();
+		}
+
+		public boolean markSupported()
+		{
+			return true;
+		}
+
+		public synchronized void mark(int readlimit)
+		{
+			buf.mark();
+		}
+
+		public synchronized void reset()
+		{
+			buf.reset();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fcrepo.server.Context;
+
+/**
+ * Size-bounded LRU cache of the subject attributes in the form the 
+ * transports send them, keyed by the fingerprint of the attributes.
+ *
+ * A user keeps the same attributes for a whole session, so the encoding is
+ * done once per subject instead of once per hook call. Additionally the 
+ * entry of the last context seen by a thread is remembered, so that the 
+ * several hooks of one API call do not even read the attributes again.
+ */
+public class SubjectAttributeCache
+{
+	private final int maxSize;
+
+	private final Map<String, Entry> entries;
+
+	/** The last context of the thread and its entry */
+	private final ThreadLocal<Object[]> last = new ThreadLocal<Object[]>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The subject attributes of one subject, ready to send.
+	 */
+	public static class Entry
+	{
+		private final String fingerprint;
+
+		private final String[] pairs;
+
+		private final byte[] form;
+
+		Entry(String fingerprint, String[] pairs)
+		{
+			this.fingerprint = fingerprint;
+			this.pairs = pairs;
+			this.form = FormRequestEntity.encode("attr", pairs);
+		}
+
+		/** @return String The fingerprint, see {@link SubjectAttributes#fingerprint(Context)} */
+		public String getFingerprint()
+		{
+			return fingerprint;
+		}
+
+		/** @return String[] The sorted name=value pairs, must not be modified */
+		public String[] getPairs()
+		{
+			return pairs;
+		}
+
+		/** @return byte[] The pairs form-encoded as <code>attr=...&amp;attr=...</code>, must not be modified */
+		public byte[] getForm()
+		{
+			return form;
+		}
+	}
+
+	/**
+	 * @param maxSize Maximum number of cached subjects
+	 */
+	public SubjectAttributeCache(int maxSize)
+	{
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+			{
+				return size()>SubjectAttributeCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param context The calling context
+	 * @return Entry The encoded subject attributes of the context
+	 */
+	public Entry get(Context context)
+	{
+		Object[] l = last.get();
+		if(l!=null && l[0]==context)
+		{
+			hits.incrementAndGet();
+			return (Entry)l[1];
+		}
+
+		List<String> pairs = SubjectAttributes.pairs(context);
+		String fingerprint = SubjectAttributes.fingerprint(pairs);
+		Entry e;
+		synchronized(entries)
+		{
+			e = entries.get(fingerprint);
+		}
+		if(e==null)
+		{
+			misses.incrementAndGet();
+			e = new Entry(fingerprint, pairs.toArray(new String[pairs.size()]));
+			synchronized(entries)
+			{
+				entries.put(fingerprint, e);
+			}
+		}
+		else
+		{
+			hits.incrementAndGet();
+		}
+		last.set(new Object[] { context, e });
+		return e;
+	}
+
+	public int size()
+	{
+		synchronized(entries)
+		{
+			return entries.size();
+		}
+	}
+
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public String toString()
+	{
+		return "size="+size()+"/"+maxSize+", hits="+getHitCount()+", misses="+getMissCount();
+	}
+}
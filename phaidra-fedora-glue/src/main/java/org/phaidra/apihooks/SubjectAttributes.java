@@ -0,0 +1,121 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.fcrepo.server.Context;
+
+/**
+ * Helpers for the subject attributes of a calling context.
+ */
+public class SubjectAttributes
+{
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Returns the subject attributes as sorted "name=value" pairs.
+	 *
+	 * @param context The calling context
+	 * @return List All name=value pairs, sorted
+	 */
+	public static List<String> pairs(Context context)
+	{
+		List<String> pairs = new ArrayList<String>();
+		Iterator i = context.subjectAttributes();
+		while(i.hasNext())
+		{
+			String name = (String)i.next();
+			try
+			{
+				String[] value = context.getSubjectValues(name);
+				for(int j=0;j<value.length;j++)
+				{
+					pairs.add(name+"="+value[j]);
+				}
+			}
+			catch(NullPointerException ex)
+			{
+				// attribute without values, same as in runHook
+			}
+		}
+		Collections.sort(pairs);
+		return pairs;
+	}
+
+	/**
+	 * Computes a fingerprint over all subject attributes, independent of the
+	 * order in which the context returns them.
+	 *
+	 * @param context The calling context
+	 * @return String Hex encoded SHA-1 of the sorted name=value pairs
+	 */
+	public static String fingerprint(Context context)
+	{
+		return fingerprint(pairs(context));
+	}
+
+	/**
+	 * @param pairs The sorted name=value pairs, see {@link #pairs(Context)}
+	 * @return String Hex encoded SHA-1 of the pairs
+	 */
+	public static String fingerprint(List<String> pairs)
+	{
+		MessageDigest md = newDigest();
+		for(String pair : pairs)
+		{
+			update(md, pair);
+		}
+		return toHex(md.digest());
+	}
+
+	static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException ex)
+		{
+			throw new IllegalStateException("SHA-1 not available", ex);
+		}
+	}
+
+	/**
+	 * Adds a string and a separator to the digest, so that ("ab","c") and
+	 * ("a","bc") give different results.
+	 */
+	static void update(MessageDigest md, String s)
+	{
+		if(s!=null)
+		{
+			try
+			{
+				md.update(s.getBytes("UTF-8"));
+			}
+			catch(UnsupportedEncodingException ex)
+			{
+				throw new IllegalStateException(ex);
+			}
+		}
+		md.update((byte)0);
+	}
+
+	static String toHex(byte[] b)
+	{
+		char[] c = new char[b.length*2];
+		for(int i=0;i<b.length;i++)
+		{
+			c[2*i] = HEX[(b[i] >> 4) & 0x0F];
+			c[2*i+1] = HEX[b[i] & 0x0F];
+		}
+		return new String(c);
+	}
+}
@@ -0,0 +1,157 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fcrepo.common.Constants;
+import org.fcrepo.server.Context;
+
+/**
+ * Size-bounded LRU cache of hook verdicts with a time to live.
+ *
+ * The key covers everything a hook can base its verdict on: the method, the
+ * PID, the login id, the subject attributes and the method parameters. Only
+ * verdicts that came without commands may be cached, as the commands would
+ * not be executed again on a cache hit.
+ */
+public class VerdictCache
+{
+	private final int maxSize;
+
+	private final long ttl;
+
+	private final Map<String, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Entry
+	{
+		final String verdict;
+		final long expires;
+
+		Entry(String verdict, long expires)
+		{
+			this.verdict = verdict;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @param maxSize Maximum number of cached verdicts
+	 * @param ttl Time to live of a verdict in ms
+	 */
+	public VerdictCache(int maxSize, long ttl)
+	{
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+			{
+				if(size()>VerdictCache.this.maxSize)
+				{
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Builds the cache key for a hook call.
+	 *
+	 * @param method The name of the method that calls the hook
+	 * @param context The calling context
+	 * @param subjectFingerprint The fingerprint of the subject attributes of the context
+	 * @param pid The PID that is being accessed
+	 * @param params Method parameters
+	 * @return String The cache key
+	 */
+	public static String key(String method, Context context, String subjectFingerprint, String pid, Object[] params)
+	{
+		MessageDigest md = SubjectAttributes.newDigest();
+		for(int i=0;i<params.length;i++)
+		{
+			// datastream content by its digest, which the REST transport may need anyway
+			SubjectAttributes.update(md, params[i] instanceof HookContent ? ((HookContent)params[i]).getDigest() : 
+				params[i]==null ? null : params[i].toString());
+		}
+		return method+"\n"+pid+"\n"+
+			   context.getSubjectValue(Constants.SUBJECT.LOGIN_ID.uri)+"\n"+
+			   subjectFingerprint+"\n"+
+			   SubjectAttributes.toHex(md.digest());
+	}
+
+	/**
+	 * @param key The cache key
+	 * @return String The cached verdict or null if there is none or it expired
+	 */
+	public String get(String key)
+	{
+		Entry e;
+		synchronized(entries)
+		{
+			e = entries.get(key);
+			if(e!=null && e.expires<System.currentTimeMillis())
+			{
+				entries.remove(key);
+				e = null;
+			}
+		}
+		if(e==null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return e.verdict;
+	}
+
+	public void put(String key, String verdict)
+	{
+		synchronized(entries)
+		{
+			entries.put(key, new Entry(verdict, System.currentTimeMillis()+ttl));
+		}
+	}
+
+	public int size()
+	{
+		synchronized(entries)
+		{
+			return entries.size();
+		}
+	}
+
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	public String toString()
+	{
+		return "size="+size()+"/"+maxSize+", hits="+getHitCount()+", misses="+getMissCount()+
+			   ", evictions="+getEvictionCount();
+	}
+}
@@ -0,0 +1,84 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the outcomes of the hook calls of one method.
+ */
+public class VerdictCounter implements VerdictCounterMBean
+{
+	public enum Outcome
+	{
+		/** The hook answered "OK" */
+		OK,
+		/** The hook answered anything else */
+		REJECTED,
+		/** The hook was not called and the method fails open */
+		FAILED_OPEN,
+		/** The verdict came from the verdict cache */
+		CACHED,
+		/** The call was batched until commit, its verdict is counted then */
+		BATCHED,
+		/** The hook was not called or its answer could not be read */
+		ERROR
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(Outcome.values().length);
+
+	public void count(Outcome outcome)
+	{
+		counts.incrementAndGet(outcome.ordinal());
+	}
+
+	public long get(Outcome outcome)
+	{
+		return counts.get(outcome.ordinal());
+	}
+
+	public long getOk()
+	{
+		return get(Outcome.OK);
+	}
+
+	public long getRejected()
+	{
+		return get(Outcome.REJECTED);
+	}
+
+	public long getFailedOpen()
+	{
+		return get(Outcome.FAILED_OPEN);
+	}
+
+	public long getCached()
+	{
+		return get(Outcome.CACHED);
+	}
+
+	public long getBatched()
+	{
+		return get(Outcome.BATCHED);
+	}
+
+	public long getErrors()
+	{
+		return get(Outcome.ERROR);
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for(Outcome outcome : Outcome.values())
+		{
+			if(sb.length()>0)
+			{
+				sb.append(", ");
+			}
+			sb.append(outcome.name().toLowerCase()).append('=').append(get(outcome));
+		}
+		return sb.toString();
+	}
+}
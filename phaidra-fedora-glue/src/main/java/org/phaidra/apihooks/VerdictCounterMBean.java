@@ -0,0 +1,22 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+/**
+ * JMX view of a {@link VerdictCounter}.
+ */
+public interface VerdictCounterMBean
+{
+	long getOk();
+
+	long getRejected();
+
+	long getFailedOpen();
+
+	long getCached();
+
+	long getBatched();
+
+	long getErrors();
+}
@@ -0,0 +1,117 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest
+{
+	private static final long OPEN_TIME = 50;
+
+	private static final CircuitBreaker.Call<String> OK = new CircuitBreaker.Call<String>() {
+		public String run()
+		{
+			return "OK";
+		}
+	};
+
+	private static final CircuitBreaker.Call<String> FAILS = new CircuitBreaker.Call<String>() {
+		public String run() throws APIHooksException
+		{
+			throw new APIHooksException("hook down");
+		}
+	};
+
+	private static final CircuitBreaker.Call<String> THROWS = new CircuitBreaker.Call<String>() {
+		public String run()
+		{
+			throw new ClassCastException("not a String");
+		}
+	};
+
+	private static CircuitBreaker openBreaker() throws Exception
+	{
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 0, OPEN_TIME);
+		for(int i=0;i<2;i++)
+		{
+			assertTrue(breaker.allowRequest());
+			try
+			{
+				breaker.record(FAILS);
+				fail();
+			}
+			catch(APIHooksException ex)
+			{
+				// expected
+			}
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		return breaker;
+	}
+
+	@Test
+	public void closesAfterASuccessfulProbe() throws Exception
+	{
+		CircuitBreaker breaker = openBreaker();
+		Thread.sleep(OPEN_TIME+10);
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		// one probe at a time
+		assertFalse(breaker.allowRequest());
+		assertEquals("OK", breaker.record(OK));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void reopensWhenAProbeThrowsARuntimeException() throws Exception
+	{
+		CircuitBreaker breaker = openBreaker();
+		Thread.sleep(OPEN_TIME+10);
+		assertTrue(breaker.allowRequest());
+		try
+		{
+			breaker.record(THROWS);
+			fail();
+		}
+		catch(ClassCastException ex)
+		{
+			// passed on to the caller
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getOpenedCount());
+
+		// not stuck half-open: the next probe goes through once the breaker has been open long enough
+		assertFalse(breaker.allowRequest());
+		Thread.sleep(OPEN_TIME+10);
+		assertTrue(breaker.allowRequest());
+		breaker.record(OK);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void countsRuntimeExceptionsAsFailures() throws Exception
+	{
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, 0, OPEN_TIME);
+		for(int i=0;i<2;i++)
+		{
+			try
+			{
+				breaker.record(THROWS);
+				fail();
+			}
+			catch(ClassCastException ex)
+			{
+				// expected
+			}
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+}
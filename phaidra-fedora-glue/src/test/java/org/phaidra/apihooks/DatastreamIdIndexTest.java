@@ -0,0 +1,109 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.fcrepo.server.storage.DOWriter;
+import org.junit.Test;
+
+public class DatastreamIdIndexTest
+{
+	/** Writers are only used as identity keys */
+	private static DOWriter writer()
+	{
+		return (DOWriter)Proxy.newProxyInstance(DOWriter.class.getClassLoader(), new Class[] { DOWriter.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args)
+					{
+						if(method.getName().equals("equals"))
+						{
+							return Boolean.valueOf(proxy==args[0]);
+						}
+						if(method.getName().equals("hashCode"))
+						{
+							return Integer.valueOf(System.identityHashCode(proxy));
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	@Test
+	public void cachesWhatWasRead()
+	{
+		DatastreamIdIndex index = new DatastreamIdIndex(10);
+		assertNull(index.contains("o:1", "DC"));
+		index.put("o:1", new String[] { "DC", "RELS-EXT" }, index.stamp());
+		assertEquals(Boolean.TRUE, index.contains("o:1", "DC"));
+		assertEquals(Boolean.FALSE, index.contains("o:1", "UWMETADATA"));
+		assertNull(index.contains("o:2", "DC"));
+	}
+
+	@Test
+	public void appliesChangesOnCommit()
+	{
+		DatastreamIdIndex index = new DatastreamIdIndex(10);
+		index.put("o:1", new String[] { "DC" }, index.stamp());
+		DOWriter w = writer();
+		index.added(w, "UWMETADATA");
+		// not before the commit
+		assertEquals(Boolean.FALSE, index.contains("o:1", "UWMETADATA"));
+		index.committed(w, "o:1");
+		assertEquals(Boolean.TRUE, index.contains("o:1", "UWMETADATA"));
+		assertEquals(Boolean.TRUE, index.contains("o:1", "DC"));
+
+		w = writer();
+		index.added(w, "X");
+		index.removed(w);
+		index.committed(w, "o:1");
+		assertNull(index.contains("o:1", "DC"));
+	}
+
+	@Test
+	public void discardsChangesOfReleasedWriters()
+	{
+		DatastreamIdIndex index = new DatastreamIdIndex(10);
+		index.put("o:1", new String[] { "DC" }, index.stamp());
+		DOWriter w = writer();
+		index.removed(w);
+		index.discard(w);
+		index.committed(w, "o:1");
+		assertEquals(Boolean.TRUE, index.contains("o:1", "DC"));
+	}
+
+	@Test
+	public void dropsReadsThatRacedWithACommit()
+	{
+		DatastreamIdIndex index = new DatastreamIdIndex(10);
+		long stamp = index.stamp();
+		DOWriter w = writer();
+		index.added(w, "NEW");
+		index.committed(w, "o:1");
+		// read before the commit, may miss NEW
+		index.put("o:1", new String[] { "DC" }, stamp);
+		assertNull(index.contains("o:1", "DC"));
+		index.put("o:1", new String[] { "DC", "NEW" }, index.stamp());
+		assertEquals(Boolean.TRUE, index.contains("o:1", "NEW"));
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsed()
+	{
+		DatastreamIdIndex index = new DatastreamIdIndex(2);
+		index.put("o:1", new String[] { "DC" }, index.stamp());
+		index.put("o:2", new String[] { "DC" }, index.stamp());
+		index.contains("o:1", "DC");
+		index.put("o:3", new String[] { "DC" }, index.stamp());
+		assertEquals(2, index.size());
+		assertEquals(Boolean.TRUE, index.contains("o:1", "DC"));
+		assertNull(index.contains("o:2", "DC"));
+		assertEquals(Boolean.TRUE, index.contains("o:3", "DC"));
+	}
+}
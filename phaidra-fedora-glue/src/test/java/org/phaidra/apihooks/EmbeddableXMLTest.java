@@ -0,0 +1,130 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.xml.serialize.OutputFormat;
+import org.apache.xml.serialize.XMLSerializer;
+import org.fcrepo.server.errors.GeneralException;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Compares {@link EmbeddableXML} with the DOM round trip it replaces, which
+ * is kept here as the reference.
+ */
+@SuppressWarnings("deprecation")
+public class EmbeddableXMLTest
+{
+	/** The former APIHooksImpl.getEmbeddableXML */
+	private static byte[] serializeDOM(String xml) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputFormat fmt = new OutputFormat("XML", "UTF-8", true);
+		fmt.setIndent(2);
+		fmt.setLineWidth(120);
+		fmt.setPreserveSpace(false);
+		fmt.setOmitXMLDeclaration(true);
+		fmt.setOmitDocumentType(true);
+		XMLSerializer ser = new XMLSerializer(out, fmt);
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		DocumentBuilder builder = factory.newDocumentBuilder();
+		Document doc = builder.parse(new InputSource(new StringReader(xml)));
+		ser.serialize(doc);
+		return out.toByteArray();
+	}
+
+	private static void assertSameAsDOM(String xml) throws Exception
+	{
+		String expected = new String(serializeDOM(xml), "UTF-8");
+		String actual = new String(EmbeddableXML.serialize(new InputSource(new StringReader(xml))), "UTF-8");
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void namespaceDeclarations() throws Exception
+	{
+		assertSameAsDOM("<r:root xmlns:r=\"urn:r\" xmlns=\"urn:d\" b=\"2\" xmlns:z=\"urn:z\" a=\"1\">"+
+				"<child z:x=\"1\" xmlns:y=\"urn:y\"><y:leaf xmlns=\"\"/></child><r:other/></r:root>");
+	}
+
+	@Test
+	public void attributeOrder() throws Exception
+	{
+		assertSameAsDOM("<root zeta=\"1\" alpha=\"2\" mid=\"3\" Beta=\"4\">"+
+				"<e c=\"\" b=\"x &quot;y&quot;\" a=\"&amp;&lt;&gt;\" xml:lang=\"de\"/></root>");
+	}
+
+	@Test
+	public void xmlSpace() throws Exception
+	{
+		assertSameAsDOM("<root>\n  <a xml:space=\"preserve\">  <b>  </b>\n  text  </a>\n"+
+				"  <c>   </c>\n  <d xml:space=\"preserve\"><e xml:space=\"default\">  <f/>  </e>  </d>\n"+
+				"  <g>  mixed <h/>  </g>\n</root>\n");
+	}
+
+	@Test
+	public void commentsAndProcessingInstructionsBeforeTheRoot() throws Exception
+	{
+		assertSameAsDOM("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- first -->\n<?app data?>\n"+
+				"<!--second--><root><!-- inside --><?pi x?><a/></root>\n<!-- after -->\n<?trailing?>");
+	}
+
+	@Test
+	public void emptyCDATA() throws Exception
+	{
+		assertSameAsDOM("<root><a><![CDATA[]]></a><b><![CDATA[x < y && ]]]></b>"+
+				"<c>t<![CDATA[]]>u</c><d>  <![CDATA[  ]]>  </d></root>");
+	}
+
+	@Test
+	public void commentsInTheDTD() throws Exception
+	{
+		assertSameAsDOM("<!DOCTYPE root [\n<!-- dtd comment -->\n<!ELEMENT root ANY>\n"+
+				"<!ATTLIST root def CDATA \"default\">\n<?dtd-pi?>\n<!ENTITY e \"entity text\">\n]>\n"+
+				"<!-- after the DTD --><root a=\"1\">&e; and &amp;</root>");
+	}
+
+	@Test
+	public void longLinesAndCharacters() throws Exception
+	{
+		StringBuilder sb = new StringBuilder("<root xmlns:dc=\"http://purl.org/dc/elements/1.1/\">");
+		for(int i=0;i<200;i++)
+		{
+			sb.append("<dc:title lang=\"de\" n=\"").append(i).append("\">Titel äöü € 😀 ");
+			for(int j=0;j<i%30;j++)
+			{
+				sb.append("word").append(j).append(' ');
+			}
+			sb.append("</dc:title>\n");
+		}
+		assertSameAsDOM(sb.append("</root>").toString());
+	}
+
+	@Test
+	public void rejectsXMLThatIsNotWellFormed() throws Exception
+	{
+		try
+		{
+			EmbeddableXML.serialize(new InputSource(new StringReader("<root><a></root>")));
+			fail("not well-formed");
+		}
+		catch(GeneralException ex)
+		{
+			// expected
+		}
+		// the reader of this thread is still usable
+		assertSameAsDOM("<root><a/></root>");
+	}
+}
@@ -0,0 +1,87 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+
+import org.junit.Test;
+
+public class FormRequestEntityTest
+{
+	private static final String[] VALUES = {
+		"",
+		"plain",
+		"a b+c&d=e%f/g?h#i",
+		".-*_~!'()",
+		"<xml attr=\"v\">\r\n\ttext</xml>",
+		"äöü ß é",
+		"€ 中文",
+		"😀 astral",
+		"unpaired \uD800 high and \uDC00 low",
+		"\u0000\u007F\u0080߿ࠀ￿",
+	};
+
+	private static String write(FormRequestEntity entity) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeRequest(out);
+		return out.toString("US-ASCII");
+	}
+
+	@Test
+	public void encodesLikeURLEncoder() throws IOException
+	{
+		for(String value : VALUES)
+		{
+			FormRequestEntity entity = new FormRequestEntity();
+			entity.add("param", value);
+			assertEquals(value, "param="+URLEncoder.encode(value, "UTF-8"), write(entity));
+		}
+	}
+
+	@Test
+	public void encodesContentLikeItsString() throws IOException
+	{
+		for(String value : VALUES)
+		{
+			FormRequestEntity entity = new FormRequestEntity();
+			entity.add("param", new HookContent(value.getBytes("UTF-8")));
+			assertEquals(value, "param="+URLEncoder.encode(value, "UTF-8"), write(entity));
+		}
+	}
+
+	@Test
+	public void encodesValuesLargerThanTheBuffer() throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;sb.length()<50000;i++)
+		{
+			sb.append(VALUES[i%VALUES.length]);
+		}
+		String value = sb.toString();
+		FormRequestEntity entity = new FormRequestEntity();
+		entity.add("a", value);
+		entity.add("b", new HookContent(value.getBytes("UTF-8")));
+		String encoded = URLEncoder.encode(value, "UTF-8");
+		assertEquals("a="+encoded+"&b="+encoded, write(entity));
+	}
+
+	@Test
+	public void joinsParameters() throws IOException
+	{
+		FormRequestEntity entity = new FormRequestEntity();
+		entity.add("username", "user one");
+		entity.add("empty", null);
+		entity.addEncoded(new byte[0]);
+		entity.addEncoded(FormRequestEntity.encode("attr", new String[] { "role=admin", "ou=ä" }));
+		entity.add("pid", "o:1");
+		assertEquals("username=user+one&empty=&attr=role%3Dadmin&attr=ou%3D%C3%A4&pid=o%3A1", write(entity));
+		// repeatable
+		assertEquals(write(entity), write(entity));
+	}
+}
@@ -0,0 +1,105 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class HookCommandPlanTest
+{
+	private static HookCommand replace(String datastream, String content)
+	{
+		return HookCommand.replaceIntoDatastream(datastream, content);
+	}
+
+	private static HookCommand purge(String datastream)
+	{
+		return HookCommand.purgeDatastream(datastream);
+	}
+
+	@Test
+	public void lastReplaceWins()
+	{
+		HookCommand first = replace("DS1", "<a/>");
+		HookCommand other = replace("DS2", "<b/>");
+		HookCommand last = replace("DS1", "<c/>");
+		HookCommandPlan plan = new HookCommandPlan(Arrays.asList(first, other, replace("DS1", "<d/>"), last));
+		assertEquals(Arrays.asList(other, last), plan.getCommands());
+		assertEquals(2, plan.getDropped());
+	}
+
+	@Test
+	public void purgeInBetweenKeepsBoth()
+	{
+		List<HookCommand> commands = Arrays.asList(replace("DS1", "<a/>"), purge("DS1"), replace("DS1", "<b/>"),
+				purge("DS2"), purge("DS2"));
+		HookCommandPlan plan = new HookCommandPlan(commands);
+		assertEquals(commands, plan.getCommands());
+		assertEquals(0, plan.getDropped());
+	}
+
+	@Test
+	public void onlyTheReplaceSinceTheLastPurgeIsDropped()
+	{
+		HookCommand before = replace("DS1", "<a/>");
+		HookCommand purge = purge("DS1");
+		HookCommand last = replace("DS1", "<c/>");
+		HookCommandPlan plan = new HookCommandPlan(Arrays.asList(before, purge, replace("DS1", "<b/>"), last));
+		assertEquals(Arrays.asList(before, purge, last), plan.getCommands());
+		assertEquals(1, plan.getDropped());
+	}
+
+	@Test
+	public void canonicalizesEachContentOnce() throws Exception
+	{
+		HookCommand a = replace("DS1", "<a  x='1'/>");
+		HookCommand b = replace("DS2", "<b/>");
+		HookCommand c = replace("DS3", "<a  x='1'/>");
+		HookCommand d = replace("DS4", "<d/>");
+		HookCommandPlan plan = new HookCommandPlan(Arrays.asList(a, b, purge("DS5"), c, d));
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			plan.canonicalize(executor);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		assertEquals("<a x=\"1\"/>", new String(plan.getContent(a), "UTF-8").trim());
+		assertSame(plan.getContent(a), plan.getContent(c));
+		assertNotNull(plan.getContent(b));
+		assertNotNull(plan.getContent(d));
+	}
+
+	@Test(expected=APIHooksException.class)
+	public void rejectsContentThatIsNotWellFormed() throws APIHooksException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			new HookCommandPlan(Arrays.asList(replace("DS1", "<a/>"), replace("DS2", "<b>"),
+					replace("DS3", "<c/>"))).canonicalize(executor);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+	@Test(expected=APIHooksException.class)
+	public void rejectsAReplaceWithoutContent() throws APIHooksException
+	{
+		HookCommandPlan plan = new HookCommandPlan(Arrays.asList(
+				HookCommand.replaceIntoDatastream("DS1", null)));
+		plan.canonicalize(null);
+	}
+}
@@ -0,0 +1,66 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HookFilterTest
+{
+	@Test
+	public void isNullWithoutConfiguration()
+	{
+		assertNull(HookFilter.compile(null, null, null));
+	}
+
+	@Test
+	public void matchesDatastreams()
+	{
+		HookFilter filter = HookFilter.compile(" UWMETADATA, RELS-EXT ,", null, null);
+		assertTrue(filter.matches("o:1", "UWMETADATA", "text/xml"));
+		assertTrue(filter.matches("o:1", "RELS-EXT", null));
+		assertFalse(filter.matches("o:1", "DC", "text/xml"));
+		assertFalse(filter.matches("o:1", "uwmetadata", "text/xml"));
+		// calls without a datastream are not checked
+		assertTrue(filter.matches("o:1", null, null));
+	}
+
+	@Test
+	public void matchesMimeTypes()
+	{
+		HookFilter filter = HookFilter.compile(null, "application/rdf+xml, TEXT/*", null);
+		assertTrue(filter.matches("o:1", "DS", "application/rdf+xml"));
+		assertTrue(filter.matches("o:1", "DS", "Application/RDF+XML; charset=UTF-8"));
+		assertTrue(filter.matches("o:1", "DS", "text/xml"));
+		assertTrue(filter.matches("o:1", "DS", "text/plain;charset=ISO-8859-1"));
+		assertFalse(filter.matches("o:1", "DS", "application/xml"));
+		assertFalse(filter.matches("o:1", "DS", "textual/xml"));
+		assertTrue(filter.matches("o:1", "DS", null));
+	}
+
+	@Test
+	public void matchesNamespaces()
+	{
+		HookFilter filter = HookFilter.compile(null, null, "o,test");
+		assertTrue(filter.matches("o:1", null, null));
+		assertTrue(filter.matches("test:abc", "DS", "text/xml"));
+		assertFalse(filter.matches("og:1", null, null));
+		assertFalse(filter.matches("o", null, null));
+		assertFalse(filter.matches("demo:1", null, null));
+		assertTrue(filter.matches(null, null, null));
+	}
+
+	@Test
+	public void matchesEveryConfiguredList()
+	{
+		HookFilter filter = HookFilter.compile("UWMETADATA", "text/xml", "o");
+		assertTrue(filter.matches("o:1", "UWMETADATA", "text/xml"));
+		assertFalse(filter.matches("test:1", "UWMETADATA", "text/xml"));
+		assertFalse(filter.matches("o:1", "DC", "text/xml"));
+		assertFalse(filter.matches("o:1", "UWMETADATA", "application/pdf"));
+	}
+}
@@ -0,0 +1,160 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HookMetricsTest
+{
+	private HookMetrics metrics;
+
+	@After
+	public void tearDown()
+	{
+		if(metrics!=null)
+		{
+			metrics.close();
+		}
+	}
+
+	private static void assertLine(String prometheus, String line)
+	{
+		assertTrue(line+" missing in\n"+prometheus, prometheus.contains("\n"+line+"\n"));
+	}
+
+	@Test
+	public void exportsCircuitBreakers() throws Exception
+	{
+		metrics = new HookMetrics(true);
+		CircuitBreaker breaker = new CircuitBreaker("modifyObject", 1, 0, 60000);
+		metrics.addCircuitBreaker("modifyObject", breaker);
+		breaker.allowRequest();
+		breaker.onFailure();
+		breaker.allowRequest();
+
+		String prometheus = metrics.toPrometheus();
+		assertLine(prometheus, "phaidra_hook_circuit_breaker_state{method=\"modifyObject\",state=\"open\"} 1");
+		assertLine(prometheus, "phaidra_hook_circuit_breaker_state{method=\"modifyObject\",state=\"closed\"} 0");
+		assertLine(prometheus, "phaidra_hook_circuit_breaker_transitions_total{method=\"modifyObject\",state=\"open\"} 1");
+		assertLine(prometheus, "phaidra_hook_circuit_breaker_rejected_total{method=\"modifyObject\"} 1");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.phaidra.apihooks:type=HookCircuitBreaker,method=modifyObject");
+		assertEquals("OPEN", server.getAttribute(name, "StateName"));
+		assertEquals(Long.valueOf(1), server.getAttribute(name, "OpenedCount"));
+		metrics.close();
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void exportsThePostCommitQueue() throws Exception
+	{
+		metrics = new HookMetrics(true);
+		KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 1, 1);
+		try
+		{
+			metrics.setPostCommitExecutor(executor);
+			final CountDownLatch release = new CountDownLatch(1);
+			final CountDownLatch started = new CountDownLatch(1);
+			executor.execute("o:1", new Runnable() {
+				public void run()
+				{
+					started.countDown();
+					try
+					{
+						release.await(10, TimeUnit.SECONDS);
+					}
+					catch(InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, -1);
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			Runnable nothing = new Runnable() {
+				public void run()
+				{
+				}
+			};
+			assertTrue(executor.execute("o:1", nothing, 0));
+			assertFalse(executor.execute("o:1", nothing, 0));
+
+			String prometheus = metrics.toPrometheus();
+			assertLine(prometheus, "phaidra_hook_postcommit_queue_depth 1");
+			assertLine(prometheus, "phaidra_hook_postcommit_tasks_total{outcome=\"submitted\"} 2");
+			assertLine(prometheus, "phaidra_hook_postcommit_tasks_total{outcome=\"rejected\"} 1");
+
+			ObjectName name = new ObjectName("org.phaidra.apihooks:type=HookPostCommitQueue");
+			assertEquals(Integer.valueOf(1), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "QueueDepth"));
+			release.countDown();
+		}
+		finally
+		{
+			executor.shutdown(5000);
+		}
+	}
+
+	@Test
+	public void exportsTheHttpPool() throws Exception
+	{
+		metrics = new HookMetrics(true);
+		HookHttpClient client = new HookHttpClient(4, 4, 1000, 1000, 1000, 60000);
+		try
+		{
+			metrics.setHttpClient(client);
+
+			String prometheus = metrics.toPrometheus();
+			assertLine(prometheus, "phaidra_hook_http_pool_connections{state=\"leased\"} 0");
+			assertLine(prometheus, "phaidra_hook_http_pool_connections{state=\"idle\"} 0");
+			assertLine(prometheus, "phaidra_hook_http_pool_max_connections 4");
+			assertLine(prometheus, "phaidra_hook_http_pool_waiting 0");
+			assertLine(prometheus, "phaidra_hook_http_requests_total{outcome=\"all\"} 0");
+
+			ObjectName name = new ObjectName("org.phaidra.apihooks:type=HookHttpPool");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(Integer.valueOf(4), server.getAttribute(name, "MaxConnections"));
+			assertEquals(Integer.valueOf(0), server.getAttribute(name, "LeasedConnections"));
+		}
+		finally
+		{
+			client.shutdown();
+		}
+	}
+
+	@Test
+	public void servesOnLoopbackByDefault() throws Exception
+	{
+		metrics = new HookMetrics(false);
+		InetSocketAddress bound = metrics.startHttpServer(null, 0);
+		assertTrue(bound.getAddress().isLoopbackAddress());
+		assertTrue(bound.getPort()>0);
+
+		URLConnection conn = new URL("http", bound.getAddress().getHostAddress(), bound.getPort(), "/metrics").openConnection();
+		InputStream in = conn.getInputStream();
+		try
+		{
+			assertTrue(conn.getContentType().startsWith("text/plain"));
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
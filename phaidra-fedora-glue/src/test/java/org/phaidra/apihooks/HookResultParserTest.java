@@ -0,0 +1,70 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class HookResultParserTest
+{
+	private static final String HOOKS = "<ph:hookResult xmlns:ph=\"http://phaidra.univie.ac.at/XML/V1.0/hooks\">"+
+			"<ph:verdict additionalInfo=\"info\">OK</ph:verdict>"+
+			"<ph:purgeDatastream datastream=\"DS1\"/></ph:hookResult>";
+
+	private static final String OTHER = "<hookResult xmlns=\"http://example.org/hooks\">"+
+			"<verdict>OK</verdict><purgeDatastream datastream=\"DS1\"/></hookResult>";
+
+	/** What deployed hooks send: the ph prefix, bound to a URI of their own */
+	private static final String DEPLOYED = "<ph:hookResult xmlns:ph=\"http://hooks.example.org/phaidra\">"+
+			"<ph:verdict>Object is locked</ph:verdict><ph:replaceIntoDatastream datastream=\"DS2\">&lt;a/&gt;"+
+			"</ph:replaceIntoDatastream></ph:hookResult>";
+
+	@Test
+	public void matchesByLocalNameByDefault() throws Exception
+	{
+		HookResultParser parser = new HookResultParser(null);
+		HookResult result = parser.parse(HOOKS);
+		assertEquals("OK", result.getVerdict());
+		assertEquals("info", result.getAdditionalInfo());
+		assertEquals(1, result.getCommands().size());
+
+		result = parser.parse(OTHER);
+		assertEquals("OK", result.getVerdict());
+		assertEquals("DS1", result.getCommands().get(0).getDatastream());
+	}
+
+	@Test
+	public void acceptsAnyURIForThePhPrefixByDefault() throws Exception
+	{
+		HookResult result = new HookResultParser(null).parse(DEPLOYED);
+		assertEquals("Object is locked", result.getVerdict());
+		assertEquals(1, result.getCommands().size());
+		assertEquals("DS2", result.getCommands().get(0).getDatastream());
+		assertEquals("<a/>", result.getCommands().get(0).getContent());
+	}
+
+	@Test
+	public void matchesAConfiguredNamespace() throws Exception
+	{
+		HookResultParser parser = new HookResultParser("http://example.org/hooks");
+		assertEquals("OK", parser.parse(OTHER).getVerdict());
+		assertNoVerdict(parser, HOOKS);
+		assertNoVerdict(parser, DEPLOYED);
+	}
+
+	private static void assertNoVerdict(HookResultParser parser, String xml)
+	{
+		try
+		{
+			parser.parse(xml);
+			fail("verdict found in "+xml);
+		}
+		catch(APIHooksException ex)
+		{
+			// expected, the elements are in another namespace
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A REST hook that answers every call with the same verdict, to compare the
+ * form/XML protocol with the binary one of {@link HookWireFormat} without a
+ * real hook. Not part of the module, run it from the test classes and point
+ * <code>restmethod</code> at it:
+ *
+ * <pre>
+ * java org.phaidra.apihooks.HookStandInServer 8099 [verdict] [--form-only]
+ * </pre>
+ *
+ * Requests are accepted as form parameters and, unless <code>--form-only</code>
+ * is given, in the binary protocol. The response is binary if the Accept
+ * header allows it, result XML otherwise. Content sent as a digest it has
+ * not seen is answered with {@link ContentDigestCache#NEED_CONTENT}.
+ */
+public class HookStandInServer implements HttpHandler
+{
+	private final String verdict;
+
+	private final boolean formOnly;
+
+	/** Digests of all parameters received in full */
+	private final Set<String> digests = Collections.synchronizedSet(new HashSet<String>());
+
+	public HookStandInServer(String verdict, boolean formOnly)
+	{
+		this.verdict = verdict;
+		this.formOnly = formOnly;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length<1)
+		{
+			System.err.println("usage: HookStandInServer port [verdict] [--form-only]");
+			System.exit(1);
+		}
+		String verdict = "OK";
+		boolean formOnly = false;
+		for(int i=1;i<args.length;i++)
+		{
+			if("--form-only".equals(args[i]))
+			{
+				formOnly = true;
+			}
+			else
+			{
+				verdict = args[i];
+			}
+		}
+		HttpServer server = HttpServer.create(new InetSocketAddress(Integer.parseInt(args[0])), 0);
+		server.createContext("/", new HookStandInServer(verdict, formOnly));
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		System.out.println("Hook stand-in listening on port "+args[0]+", verdict "+verdict+
+				(formOnly ? ", form parameters only" : ""));
+	}
+
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			byte[] body = readBody(exchange.getRequestBody());
+			String ct = exchange.getRequestHeaders().getFirst("Content-Type");
+			int events;
+			boolean needContent = false;
+			if(ct!=null && ct.startsWith(HookWireFormat.CONTENT_TYPE))
+			{
+				if(formOnly)
+				{
+					send(exchange, 415, "text/plain", "binary requests are not accepted".getBytes("UTF-8"));
+					return;
+				}
+				List<HookEvent> request = HookWireFormat.readRequest(body, body.length);
+				events = request.size();
+				for(HookEvent event : request)
+				{
+					for(Object param : event.getParams())
+					{
+						needContent |= !checkParam(param instanceof HookContent.Digest, param);
+					}
+				}
+			}
+			else
+			{
+				Map<String, String> form = parseForm(new String(body, "UTF-8"));
+				events = "_batch".equals(form.get("method")) ? Integer.parseInt(form.get("count")) : 1;
+				for(Map.Entry<String, String> param : form.entrySet())
+				{
+					if(param.getKey().contains("param"))
+					{
+						needContent |= !checkParam(param.getKey().endsWith(".digest"), param.getValue());
+					}
+				}
+			}
+			String verdict = needContent ? ContentDigestCache.NEED_CONTENT : this.verdict;
+
+			String accept = exchange.getRequestHeaders().getFirst("Accept");
+			if(!formOnly && accept!=null && accept.contains(HookWireFormat.CONTENT_TYPE))
+			{
+				List<HookResult> results = new ArrayList<HookResult>(events);
+				for(int i=0;i<events;i++)
+				{
+					results.add(new HookResult(verdict, ""));
+				}
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				DataOutputStream data = new DataOutputStream(out);
+				HookWireFormat.writeResults(data, results);
+				data.flush();
+				send(exchange, 200, HookWireFormat.CONTENT_TYPE, out.toByteArray());
+			}
+			else
+			{
+				send(exchange, 200, "text/xml; charset=UTF-8", resultXML(events, verdict).getBytes("UTF-8"));
+			}
+		}
+		catch(Exception ex)
+		{
+			send(exchange, 500, "text/plain", ex.toString().getBytes("UTF-8"));
+		}
+	}
+
+	/**
+	 * One <code>ph:result</code> per event; a single call reads the first verdict.
+	 */
+	private static String resultXML(int events, String verdict)
+	{
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		sb.append("<ph:results xmlns:ph=\"http://phaidra.univie.ac.at/XML/V1.0/hooks\">");
+		for(int i=0;i<events;i++)
+		{
+			sb.append("<ph:result><ph:verdict>").append(verdict).append("</ph:verdict><ph:additionalInfo/></ph:result>");
+		}
+		return sb.append("</ph:results>").toString();
+	}
+
+	/**
+	 * @return boolean FALSE if the parameter is a digest of content that was not received
+	 */
+	private boolean checkParam(boolean isDigest, Object param) throws IOException
+	{
+		if(isDigest)
+		{
+			return digests.contains(param.toString());
+		}
+		if(param!=null)
+		{
+			digests.add(new HookContent(param.toString().getBytes("UTF-8")).getDigest());
+		}
+		return true;
+	}
+
+	private static Map<String, String> parseForm(String body) throws IOException
+	{
+		Map<String, String> form = new HashMap<String, String>();
+		for(String pair : body.split("&"))
+		{
+			int eq = pair.indexOf('=');
+			if(eq>0)
+			{
+				form.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq+1), "UTF-8"));
+			}
+		}
+		return form;
+	}
+
+	private static byte[] readBody(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while((n=in.read(buf))!=-1)
+		{
+			out.write(buf, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+}
@@ -0,0 +1,172 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HookWireFormatTest
+{
+	/** Two and three byte characters, a surrogate pair, markup that would need escaping in XML */
+	private static final String TEXT = "<a b=\"&amp;\">äöü € \uD83D\uDE00\n\t</a>";
+
+	@Test
+	public void requestRoundTrip() throws Exception
+	{
+		BinaryRequestEntity entity = new BinaryRequestEntity("user", "o:1", new String[] { "role=admin", "x=" });
+		entity.addEvent("modifyDatastreamByValue", new Object[] { "DS1", null, "", TEXT,
+				new HookContent(TEXT.getBytes("UTF-8")), new HookContent.Digest("0123abcd") });
+		entity.addEvent("purgeDatastream", new Object[0]);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeRequest(out);
+		byte[] request = out.toByteArray();
+
+		List<HookEvent> events = HookWireFormat.readRequest(request, request.length);
+		assertEquals(2, events.size());
+		HookEvent e = events.get(0);
+		assertEquals("modifyDatastreamByValue", e.getMethod());
+		assertEquals("o:1", e.getPid());
+		Object[] params = e.getParams();
+		assertEquals(6, params.length);
+		assertArrayEquals(new Object[] { "DS1", null, "", TEXT, TEXT }, Arrays.copyOf(params, 5));
+		assertEquals("0123abcd", ((HookContent.Digest)params[5]).getDigest());
+		assertEquals("purgeDatastream", events.get(1).getMethod());
+		assertEquals(0, events.get(1).getParams().length);
+	}
+
+	@Test
+	public void resultsRoundTrip() throws Exception
+	{
+		HookResult first = new HookResult("OK", null);
+		first.addCommand(HookCommand.replaceIntoDatastream("DS1", TEXT));
+		first.addCommand(HookCommand.purgeDatastream("DS2"));
+		first.addCommand(HookCommand.replaceIntoDatastream("DS2", ""));
+		HookResult second = new HookResult("Object is locked", "locked by "+TEXT);
+		byte[] response = writeResults(Arrays.asList(first, second));
+
+		List<HookResult> results = HookWireFormat.readResults(response, response.length);
+		assertEquals(2, results.size());
+		HookResult r = results.get(0);
+		assertEquals("OK", r.getVerdict());
+		assertEquals("", r.getAdditionalInfo());
+		assertEquals(3, r.getCommands().size());
+		assertCommand(HookCommand.Type.REPLACE_INTO_DATASTREAM, "DS1", TEXT, r.getCommands().get(0));
+		assertCommand(HookCommand.Type.PURGE_DATASTREAM, "DS2", null, r.getCommands().get(1));
+		assertCommand(HookCommand.Type.REPLACE_INTO_DATASTREAM, "DS2", "", r.getCommands().get(2));
+		r = results.get(1);
+		assertEquals("Object is locked", r.getVerdict());
+		assertEquals("locked by "+TEXT, r.getAdditionalInfo());
+		assertTrue(r.getCommands().isEmpty());
+	}
+
+	@Test
+	public void readsFromTheStartOfALargerBuffer() throws Exception
+	{
+		byte[] response = writeResults(Arrays.asList(new HookResult("OK", "info")));
+		byte[] buf = Arrays.copyOf(response, response.length+100);
+		Arrays.fill(buf, response.length, buf.length, (byte)0xFF);
+		assertEquals("info", HookWireFormat.readResults(buf, response.length).get(0).getAdditionalInfo());
+	}
+
+	@Test
+	public void rejectsTruncatedResponses() throws Exception
+	{
+		HookResult result = new HookResult("OK", "info");
+		result.addCommand(HookCommand.replaceIntoDatastream("DS1", TEXT));
+		result.addCommand(HookCommand.purgeDatastream("DS2"));
+		byte[] response = writeResults(Arrays.asList(result));
+		for(int len=0;len<response.length;len++)
+		{
+			try
+			{
+				HookWireFormat.readResults(response, len);
+				fail("truncated response of "+len+" bytes accepted");
+			}
+			catch(APIHooksException ex)
+			{
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void rejectsAnotherVersion() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(HookWireFormat.VERSION+1);
+		out.writeInt(0);
+		assertMalformed(bytes.toByteArray());
+	}
+
+	private static byte[] writeResults(List<HookResult> results) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		HookWireFormat.writeResults(out, new ArrayList<HookResult>(results));
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void assertCommand(HookCommand.Type type, String datastream, String content, HookCommand command)
+	{
+		assertEquals(type, command.getType());
+		assertEquals(datastream, command.getDatastream());
+		assertEquals(content, command.getContent());
+	}
+	@Test
+	public void rejectsAReplaceWithoutContent() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(HookWireFormat.VERSION);
+		out.writeInt(1);
+		HookWireFormat.writeString(out, "OK");
+		HookWireFormat.writeString(out, null);
+		out.writeInt(1);
+		out.writeInt(1);
+		HookWireFormat.writeString(out, "DS1");
+		HookWireFormat.writeString(out, null);
+		assertMalformed(bytes.toByteArray());
+	}
+
+	@Test
+	public void rejectsACommandWithoutDatastream() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(HookWireFormat.VERSION);
+		out.writeInt(1);
+		HookWireFormat.writeString(out, "OK");
+		HookWireFormat.writeString(out, null);
+		out.writeInt(1);
+		out.writeInt(2);
+		HookWireFormat.writeString(out, null);
+		assertMalformed(bytes.toByteArray());
+	}
+
+	private static void assertMalformed(byte[] response)
+	{
+		try
+		{
+			HookWireFormat.readResults(response, response.length);
+			fail("malformed response accepted");
+		}
+		catch(APIHooksException ex)
+		{
+			// expected
+		}
+	}
+}
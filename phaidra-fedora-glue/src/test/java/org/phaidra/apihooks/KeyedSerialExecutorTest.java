@@ -0,0 +1,152 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyedSerialExecutorTest
+{
+	private KeyedSerialExecutor executor;
+
+	@Before
+	public void setUp()
+	{
+		executor = new KeyedSerialExecutor("test", 2, 2);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		executor.shutdown(1000);
+	}
+
+	@Test
+	public void keepsOrderOfAKeyWhenTheQueueOverflows() throws Exception
+	{
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch release = new CountDownLatch(1);
+		executor.execute("o:1", new Runnable() {
+			public void run()
+			{
+				await(release);
+			}
+		}, -1);
+		Thread producer = new Thread() {
+			public void run()
+			{
+				try
+				{
+					for(int i=0;i<50;i++)
+					{
+						final Integer n = Integer.valueOf(i);
+						executor.execute("o:1", new Runnable() {
+							public void run()
+							{
+								order.add(n);
+								threads.add(Thread.currentThread().getName());
+							}
+						}, -1);
+					}
+				}
+				catch(InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		producer.start();
+		// the producer waits for room instead of running tasks itself
+		producer.join(200);
+		assertTrue(producer.isAlive());
+		assertTrue(order.isEmpty());
+
+		release.countDown();
+		producer.join(5000);
+		assertTrue(executor.shutdown(5000));
+		assertEquals(50, order.size());
+		for(int i=0;i<50;i++)
+		{
+			assertEquals(Integer.valueOf(i), order.get(i));
+			assertTrue(threads.get(i).startsWith("test-"));
+		}
+		assertTrue(executor.getBlockedCount()>0);
+		assertEquals(0, executor.getRejectedCount());
+	}
+
+	@Test
+	public void rejectsWhenTheQueueStaysFull() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+		assertTrue(executor.execute("o:1", new Runnable() {
+			public void run()
+			{
+				started.countDown();
+				await(release);
+			}
+		}, 0));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		for(int i=0;i<2;i++)
+		{
+			assertTrue(executor.execute("o:1", new Runnable() {
+				public void run()
+				{
+					ran.add("queued");
+				}
+			}, 0));
+		}
+
+		long start = System.currentTimeMillis();
+		assertFalse(executor.execute("o:1", new Runnable() {
+			public void run()
+			{
+				ran.add("rejected");
+			}
+		}, 100));
+		assertTrue(System.currentTimeMillis()-start>=100);
+		assertEquals(1, executor.getRejectedCount());
+
+		release.countDown();
+		assertTrue(executor.shutdown(5000));
+		assertEquals(2, ran.size());
+		assertFalse(ran.contains("rejected"));
+	}
+
+	@Test
+	public void rejectsAfterShutdown() throws Exception
+	{
+		assertTrue(executor.shutdown(1000));
+		assertFalse(executor.execute("o:1", new Runnable() {
+			public void run()
+			{
+			}
+		}, -1));
+	}
+
+	private static void await(CountDownLatch latch)
+	{
+		try
+		{
+			latch.await(10, TimeUnit.SECONDS);
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PostCommitCoalescerTest
+{
+	private final List<List<PostCommitEvent>> flushed = Collections.synchronizedList(new ArrayList<List<PostCommitEvent>>());
+
+	private PostCommitCoalescer coalescer;
+
+	@After
+	public void tearDown()
+	{
+		if(coalescer!=null)
+		{
+			coalescer.shutdown();
+		}
+	}
+
+	private static PostCommitEvent event(String pid, String user, String message)
+	{
+		return new PostCommitEvent("modifyDatastreamByValue_PostCommit", pid, user, message, new String[0], null);
+	}
+
+	private static List<String> messages(List<PostCommitEvent> events)
+	{
+		List<String> messages = new ArrayList<String>();
+		for(PostCommitEvent e : events)
+		{
+			messages.add(e.getLogMessage());
+		}
+		return messages;
+	}
+
+	@Test
+	public void keepsTheOrderOfInterleavingUsersOnOnePid() throws Exception
+	{
+		final CountDownLatch closed = new CountDownLatch(2);
+		coalescer = new PostCommitCoalescer(200, new PostCommitCoalescer.Flush() {
+			public void flush(List<PostCommitEvent> events)
+			{
+				flushed.add(events);
+				closed.countDown();
+			}
+		});
+		coalescer.add(event("o:1", "alice", "a1"));
+		coalescer.add(event("o:1", "bob", "b1"));
+		coalescer.add(event("o:2", "bob", "other"));
+		coalescer.add(event("o:1", "alice", "a2"));
+		coalescer.add(event("o:1", "alice", "a3"));
+		coalescer.add(event("o:1", "bob", "b2"));
+		assertEquals(2, coalescer.size());
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+
+		// one window per PID, whoever made the calls
+		List<PostCommitEvent> o1 = flushed.get(0).get(0).getPid().equals("o:1") ? flushed.get(0) : flushed.get(1);
+		assertEquals(Arrays.asList("a1", "b1", "a2", "a3", "b2"), messages(o1));
+
+		List<List<PostCommitEvent>> runs = PostCommitCoalescer.splitByUser(o1);
+		assertEquals(4, runs.size());
+		assertEquals(Arrays.asList("a1"), messages(runs.get(0)));
+		assertEquals(Arrays.asList("b1"), messages(runs.get(1)));
+		assertEquals(Arrays.asList("a2", "a3"), messages(runs.get(2)));
+		assertEquals(Arrays.asList("b2"), messages(runs.get(3)));
+		assertEquals("alice", runs.get(2).get(0).getLoginId());
+	}
+
+	@Test
+	public void opensANewWindowAfterAFlush() throws Exception
+	{
+		final CountDownLatch first = new CountDownLatch(1);
+		final CountDownLatch second = new CountDownLatch(2);
+		coalescer = new PostCommitCoalescer(50, new PostCommitCoalescer.Flush() {
+			public void flush(List<PostCommitEvent> events)
+			{
+				flushed.add(events);
+				first.countDown();
+				second.countDown();
+			}
+		});
+		coalescer.add(event("o:1", "alice", "a1"));
+		assertTrue(first.await(5, TimeUnit.SECONDS));
+		coalescer.add(event("o:1", "bob", "b1"));
+		assertTrue(second.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("a1"), messages(flushed.get(0)));
+		assertEquals(Arrays.asList("b1"), messages(flushed.get(1)));
+	}
+
+	@Test
+	public void flushesOpenWindowsOnShutdown()
+	{
+		coalescer = new PostCommitCoalescer(60000, new PostCommitCoalescer.Flush() {
+			public void flush(List<PostCommitEvent> events)
+			{
+				flushed.add(events);
+			}
+		});
+		coalescer.add(event("o:1", "alice", "a1"));
+		coalescer.add(event("o:1", "bob", "b1"));
+		coalescer.shutdown();
+		assertEquals(1, flushed.size());
+		assertEquals(Arrays.asList("a1", "b1"), messages(flushed.get(0)));
+		assertEquals(0, coalescer.size());
+	}
+}
@@ -0,0 +1,87 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how fast {@link PostCommitJournal#open()} replays a journal after
+ * a restart, and the append rate that builds it. Not a unit test, run it by
+ * hand:
+ *
+ * <pre>
+ * java org.phaidra.apihooks.PostCommitJournalBenchmark [events] [unacked percent] [segment KB]
+ * </pre>
+ *
+ * Defaults are 100000 events, 10 percent left unacknowledged and 4096 KB
+ * segments (the <code>postcommitjournalsegmentsize</code> default).
+ */
+public class PostCommitJournalBenchmark
+{
+	public static void main(String[] args) throws IOException
+	{
+		int events = args.length>0 ? Integer.parseInt(args[0]) : 100000;
+		int unacked = args.length>1 ? Integer.parseInt(args[1]) : 10;
+		int segmentSize = (args.length>2 ? Integer.parseInt(args[2]) : 4096)*1024;
+
+		File dir = File.createTempFile("postcommit-benchmark", "");
+		dir.delete();
+		dir.mkdirs();
+		try
+		{
+			PostCommitJournal journal = new PostCommitJournal(dir, segmentSize);
+			journal.open();
+			List<PostCommitEvent> appended = new ArrayList<PostCommitEvent>(events);
+			long start = System.nanoTime();
+			for(int i=0;i<events;i++)
+			{
+				PostCommitEvent e = new PostCommitEvent("addDatastream_PostCommit", "o:"+i, "benchmark",
+						"Added a new datastream (addDatastream_PostCommit)",
+						new String[] { "UWMETADATA", "text/xml", null, "Datastream "+i }, null);
+				journal.append(e);
+				appended.add(e);
+			}
+			long appendTime = System.nanoTime()-start;
+			// acknowledged events are spread over all segments, so that none can be deleted
+			for(int i=0;i<events;i++)
+			{
+				if(i%100>=unacked)
+				{
+					journal.ack(appended.get(i));
+				}
+			}
+			int segments = journal.getSegmentCount();
+			long records = journal.getAppendedCount()+journal.getAckedCount();
+			journal.close();
+
+			journal = new PostCommitJournal(dir, segmentSize);
+			start = System.nanoTime();
+			List<PostCommitEvent> pending = journal.open();
+			long replayTime = System.nanoTime()-start;
+			journal.close();
+
+			System.out.println("append: "+events+" events in "+appendTime/1000000+" ms ("+
+					rate(events, appendTime)+" events/s, each forced to disk)");
+			System.out.println("replay: "+records+" records in "+segments+" segments in "+replayTime/1000000+" ms ("+
+					rate(records, replayTime)+" records/s), "+pending.size()+" unacknowledged events");
+		}
+		finally
+		{
+			File[] files = dir.listFiles();
+			for(int i=0;files!=null && i<files.length;i++)
+			{
+				files[i].delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static long rate(long n, long nanos)
+	{
+		return nanos==0 ? n : n*1000000000L/nanos;
+	}
+}
@@ -0,0 +1,264 @@
+/* The contents of this file are subject to the same license and copyright terms
+ * as Fedora Commons (http://fedora-commons.org/).
+ */
+package org.phaidra.apihooks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PostCommitJournalTest
+{
+	/** Small segments, a few events each */
+	private static final int SEGMENT_SIZE = 512;
+
+	private File dir;
+
+	private PostCommitJournal journal;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = File.createTempFile("postcommit", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown()
+	{
+		if(journal!=null)
+		{
+			journal.close();
+		}
+		File[] files = dir.listFiles();
+		for(int i=0;files!=null && i<files.length;i++)
+		{
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	private static PostCommitEvent event(int n)
+	{
+		return new PostCommitEvent("addDatastream_PostCommit", "o:"+n, "user", "event "+n,
+				new String[] { "DS"+n, "text/xml", null, "label" }, null);
+	}
+
+	private List<PostCommitEvent> reopen() throws IOException
+	{
+		journal.close();
+		journal = new PostCommitJournal(dir, SEGMENT_SIZE);
+		return journal.open();
+	}
+
+	private static List<String> pids(List<PostCommitEvent> events)
+	{
+		List<String> pids = new ArrayList<String>();
+		for(PostCommitEvent e : events)
+		{
+			pids.add(e.getPid());
+		}
+		return pids;
+	}
+
+	private File[] segmentFiles()
+	{
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+
+	@Test
+	public void replaysUnacknowledgedEventsAcrossSegments() throws IOException
+	{
+		journal = new PostCommitJournal(dir, SEGMENT_SIZE);
+		assertTrue(journal.open().isEmpty());
+		List<PostCommitEvent> events = new ArrayList<PostCommitEvent>();
+		for(int i=0;i<20;i++)
+		{
+			PostCommitEvent e = event(i);
+			journal.append(e);
+			events.add(e);
+		}
+		assertTrue(journal.getSegmentCount()>3);
+		for(int i=0;i<20;i+=2)
+		{
+			journal.ack(events.get(i));
+		}
+
+		List<PostCommitEvent> pending = reopen();
+		assertEquals(Arrays.asList("o:1", "o:3", "o:5", "o:7", "o:9", "o:11", "o:13", "o:15", "o:17", "o:19"), pids(pending));
+		PostCommitEvent e = pending.get(0);
+		assertEquals("addDatastream_PostCommit", e.getMethod());
+		assertEquals("user", e.getLoginId());
+		assertEquals("event 1", e.getLogMessage());
+		assertArrayEquals(new String[] { "DS1", "text/xml", null, "label" }, e.getParams());
+		assertTrue(e.isJournaled());
+	}
+
+	@Test
+	public void keepsAcksOfEventsInOlderSegments() throws IOException
+	{
+		journal = new PostCommitJournal(dir, SEGMENT_SIZE);
+		journal.open();
+		List<PostCommitEvent> events = new ArrayList<PostCommitEvent>();
+		for(int i=0;i<20;i++)
+		{
+			PostCommitEvent e = event(i);
+			journal.append(e);
+			events.add(e);
+		}
+		// everything but the first event; most ACKs land in segments whose own events are all acknowledged
+		for(int i=1;i<20;i++)
+		{
+			journal.ack(events.get(i));
+		}
+		assertEquals(1, journal.getLiveCount());
+
+		assertEquals(Arrays.asList("o:0"), pids(reopen()));
+		// and again, the replay must not have lost anything either
+		assertEquals(Arrays.asList("o:0"), pids(reopen()));
+	}
+
+	@Test
+	public void deletesSegmentsOnceEverythingIsAcknowledged() throws IOException
+	{
+		journal = new PostCommitJournal(dir, SEGMENT_SIZE);
+		journal.open();
+		List<PostCommitEvent> events = new ArrayList<PostCommitEvent>();
+		for(int i=0;i<20;i++)
+		{
+			PostCommitEvent e = event(i);
+			journal.append(e);
+			events.add(e);
+		}
+		for(PostCommitEvent e : events)
+		{
+			journal.ack(e);
+		}
+		// only the active segment is left
+		assertEquals(1, journal.getSegmentCount());
+		assertTrue(reopen().isEmpty());
+	}
+
+	@Test
+	public void compactsTheOldestSegment() throws IOException
+	{
+		journal = new PostCommitJournal(dir, SEGMENT_SIZE);
+		journal.open();
+		List<PostCommitEvent> events = new ArrayList<PostCommitEvent>();
+		for(int i=0;i<20;i++)
+		{
+			PostCommitEvent e = event(i);
+			journal.append(e);
+			events.add(e);
+		}
+		for(int i=1;i<20;i++)
+		{
+			journal.ack(events.get(i));
+		}
+		int before = journal.getSegmentCount();
+		assertTrue(journal.compact()>0);
+		assertTrue(journal.getSegmentCount()<before);
+
+		// the copy replaces the original, the event is replayed once
+		List<PostCommitEvent> pending = reopen();
+		assertEquals(Arrays.asList("o:0"), pids(pending));
+		journal.ack(pending.get(0));
+		assertTrue(reopen().isEmpty());
+	}
+
+	@Test
+	public void recoversFromATruncatedTail() throws IOException
+	{
+		journal = new PostCommitJournal(dir, 64*1024);
+		journal.open();
+		for(int i=0;i<3;i++)
+		{
+			journal.append(event(i));
+		}
+		journal.close();
+
+		// cut the last record in half, like a crash in the middle of a write
+		File segment = segmentFiles()[0];
+		long third = recordOffset(segment, 2);
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(third+HEADER_AND_SOME);
+		raf.close();
+
+		journal = new PostCommitJournal(dir, 64*1024);
+		assertEquals(Arrays.asList("o:0", "o:1"), pids(journal.open()));
+
+		// the journal goes on in a new segment
+		journal.append(event(3));
+		assertEquals(Arrays.asList("o:0", "o:1", "o:3"), pids(reopen()));
+	}
+
+	@Test
+	public void stopsAtACorruptRecord() throws IOException
+	{
+		journal = new PostCommitJournal(dir, 64*1024);
+		journal.open();
+		for(int i=0;i<3;i++)
+		{
+			journal.append(event(i));
+		}
+		journal.close();
+
+		// flip a byte in the body of the second record
+		File segment = segmentFiles()[0];
+		long second = recordOffset(segment, 1);
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.seek(second+HEADER_AND_SOME);
+		int b = raf.read();
+		raf.seek(second+HEADER_AND_SOME);
+		raf.write(b ^ 0xff);
+		raf.close();
+
+		journal = new PostCommitJournal(dir, 64*1024);
+		assertEquals(Arrays.asList("o:0"), pids(journal.open()));
+
+		// the journal goes on after the last valid record
+		PostCommitEvent e = event(3);
+		journal.append(e);
+		assertTrue(e.getId()>1);
+		assertEquals(Arrays.asList("o:0", "o:3"), pids(reopen()));
+	}
+
+	/** Past the header, inside the body of a record */
+	private static final int HEADER_AND_SOME = 8+5;
+
+	/**
+	 * @return long The offset of the record with the given index in a segment file
+	 */
+	private static long recordOffset(File segment, int index) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(segment, "r");
+		try
+		{
+			long offset = 0;
+			for(int i=0;i<index;i++)
+			{
+				raf.seek(offset);
+				offset += 8+raf.readInt();
+			}
+			return offset;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}